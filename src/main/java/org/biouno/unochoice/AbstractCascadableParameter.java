@@ -24,17 +24,44 @@
 
 package org.biouno.unochoice;
 
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.CheckForNull;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.acegisecurity.Authentication;
 import org.apache.commons.lang.StringUtils;
+import org.biouno.unochoice.model.GroovyScript;
 import org.biouno.unochoice.model.Script;
+import org.biouno.unochoice.util.ChoicesResponse;
+import org.biouno.unochoice.util.FairQueue;
+import org.biouno.unochoice.util.RateLimiter;
+import org.biouno.unochoice.util.Utils;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.WebApp;
+import org.kohsuke.stapler.bind.Bound;
 import org.kohsuke.stapler.bind.JavaScriptMethod;
 import org.kohsuke.stapler.json.JsonHttpResponse;
 
+import hudson.model.Job;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
 /**
  * Base class for cascadable parameters, providing basic and utility methods.
  *
@@ -47,6 +74,46 @@ public abstract class AbstractCascadableParameter extends AbstractScriptablePara
      * Serial UID. 
      */
     private static final long serialVersionUID = 3795727126307053346L;
+
+    /**
+     * Number of evaluations per second that a user can request from the UI for the parameters of a job, once the
+     * burst is used. Zero disables the limit. Well above what a user changing values calls, so that only scripted
+     * clients are limited.
+     */
+    public static final int EVALUATION_RATE = Integer.getInteger(
+            AbstractCascadableParameter.class.getName() + ".evaluationRate", 50);
+
+    /**
+     * Number of evaluations that a user can request from the UI at once for the parameters of a job. Loading a
+     * form calls each parameter once, and once more to revalidate cached choices, so this is well above what a
+     * form with a hundred parameters calls.
+     */
+    public static final int EVALUATION_BURST = Integer.getInteger(
+            AbstractCascadableParameter.class.getName() + ".evaluationBurst", 500);
+
+    /**
+     * Number of evaluations requested from the UI that can run at the same time. The others wait for their turn.
+     */
+    public static final int MAX_CONCURRENT_EVALUATIONS = Integer.getInteger(
+            AbstractCascadableParameter.class.getName() + ".maxConcurrentEvaluations",
+            2 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * How long, in milliseconds, an evaluation requested from the UI waits for its turn before it is rejected.
+     */
+    public static final int EVALUATION_QUEUE_TIMEOUT = Integer.getInteger(
+            AbstractCascadableParameter.class.getName() + ".evaluationQueueTimeout", 10000);
+
+    private static final RateLimiter RATE_LIMITER = new RateLimiter(EVALUATION_RATE, TimeUnit.SECONDS,
+            EVALUATION_BURST);
+
+    private static final FairQueue EVALUATIONS = new FairQueue(MAX_CONCURRENT_EVALUATIONS);
+
+    /**
+     * HTTP status code of responses to rejected calls, which is not in the servlet API.
+     */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
     /**
      * Map with parameters in the UI.
      */
@@ -58,6 +125,16 @@ public abstract class AbstractCascadableParameter extends AbstractScriptablePara
      */
     private final String referencedParameters;
 
+    /**
+     * Whether referenced parameters that the script never reads are left out of the UI.
+     */
+    private boolean dropUnusedReferences = false;
+
+    /**
+     * Whether the UI only updates this parameter when it is visible, or when the form is submitted.
+     */
+    private boolean lazy = false;
+
     /**
      * Create a new abstract cascadable parameter.
      * @param name name
@@ -94,6 +171,82 @@ public abstract class AbstractCascadableParameter extends AbstractScriptablePara
         return referencedParameters;
     }
 
+    /**
+     * @return whether referenced parameters that the script never reads are left out of the UI
+     * @since 2.2
+     */
+    public boolean isDropUnusedReferences() {
+        return dropUnusedReferences;
+    }
+
+    /**
+     * Sets whether referenced parameters that the script never reads are left out of the UI, so that changing
+     * their values does not evaluate the script again.
+     *
+     * @param dropUnusedReferences whether to leave out unused referenced parameters
+     * @since 2.2
+     */
+    @DataBoundSetter
+    public void setDropUnusedReferences(boolean dropUnusedReferences) {
+        this.dropUnusedReferences = dropUnusedReferences;
+    }
+
+    /**
+     * @return whether the UI only updates this parameter when it is visible, or when the form is submitted
+     * @since 2.2
+     */
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * Sets whether the UI only updates this parameter when it is scrolled into view, or when the form is
+     * submitted. Changes to the referenced parameters are still tracked, so the parameter is up to date when it
+     * is needed.
+     *
+     * @param lazy whether the parameter is updated lazily
+     * @since 2.2
+     */
+    @DataBoundSetter
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * Gets the referenced parameters that the Groovy script, and its fallback script, never read. Scripts are
+     * analysed without running them, see {@link GroovyScript#getReadVariables()}.
+     *
+     * @return names of the unused referenced parameters, empty if every referenced parameter is read, or if the
+     * variables read by the script are unknown
+     * @since 2.2
+     */
+    public List<String> getUnusedReferencedParameters() {
+        final Set<String> readVariables = script instanceof GroovyScript
+                ? ((GroovyScript) script).getReadVariables() : null;
+        return getUnusedReferencedParameters(getReferencedParametersAsArray(), readVariables);
+    }
+
+    /**
+     * Gets the referenced parameters that are not among the variables read by a script.
+     *
+     * @param referencedParameters referenced parameters
+     * @param readVariables variables read by the script, or {@code null} if unknown
+     * @return names of the unused referenced parameters, empty if the variables read are unknown
+     */
+    static List<String> getUnusedReferencedParameters(String[] referencedParameters,
+            @CheckForNull Set<String> readVariables) {
+        if (readVariables == null) {
+            return Collections.emptyList();
+        }
+        final List<String> unused = new ArrayList<String>();
+        for (String referencedParameter : referencedParameters) {
+            if (!readVariables.contains(referencedParameter)) {
+                unused.add(referencedParameter);
+            }
+        }
+        return unused;
+    }
+
     /*
      * (non-Javadoc)
      * @see org.biouno.unochoice.AbstractScriptableParameter#getParameters()
@@ -149,12 +302,197 @@ public abstract class AbstractCascadableParameter extends AbstractScriptablePara
     @Override
     @JavaScriptMethod
     public List<Object> getChoicesForUI() {
-        Map<Object, Object> mapResult = getChoices(getParameters());
+        final Map<Object, Object> mapResult = getChoicesForRequest();
         return Arrays.<Object>asList(mapResult.values(), mapResult.keySet());
     }
 
+    /**
+     * Evaluates the script for the UI, and streams the choices in a compact form (see {@link ChoicesResponse}), or
+     * replies with a 304 if the UI already has them. This method never returns normally, its result is always the
+     * HTTP response it throws.
+     *
+     * @throws HttpResponses.HttpResponseException the response, with the choices or a 304
+     * @since 2.2
+     */
+    @JavaScriptMethod
+    public void streamChoicesForUI() throws HttpResponses.HttpResponseException {
+        final Map<Object, Object> mapResult = getChoicesForRequest();
+        checkNotModified(Utils.computeETag(mapResult));
+        throw new ChoicesResponse(mapResult);
+    }
+
+    private Map<Object, Object> getChoicesForRequest() {
+        final boolean started = startEvaluation();
+        try {
+            return getChoices(getParameters());
+        } finally {
+            finishEvaluation(started);
+        }
+    }
+
+    /**
+     * Starts an evaluation requested from the UI. Each user can request a limited number of evaluations per
+     * second for the parameters of a job, and only a limited number of evaluations run at the same time, with
+     * the users waiting for their turns. Calls over these limits are rejected with a 429, and a Retry-After
+     * header telling the UI when to try again. Does nothing when not called within a Stapler request.
+     *
+     * @return {@code true} if the evaluation took a turn, that must be given back with
+     * {@link #finishEvaluation(boolean)}
+     * @since 2.2
+     */
+    protected boolean startEvaluation() {
+        final StaplerRequest request = Stapler.getCurrentRequest();
+        if (request == null)
+            return false;
+        final Authentication authentication = Jenkins.getAuthentication();
+        final String user = ACL.isAnonymous(authentication) ? "anonymous@" + request.getRemoteAddr()
+                : authentication.getName();
+        final Job<?, ?> project = findProject();
+        final long retryAfter = RATE_LIMITER.tryAcquire(user + ' '
+                + (project == null ? getRandomName() : project.getFullName()));
+        if (retryAfter > 0) {
+            throw tooManyRequests(retryAfter);
+        }
+        try {
+            if (EVALUATIONS.acquire(user, EVALUATION_QUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        throw tooManyRequests(EVALUATION_QUEUE_TIMEOUT);
+    }
+
+    /**
+     * Finishes an evaluation started with {@link #startEvaluation()}, giving back its turn.
+     *
+     * @param started value returned by {@link #startEvaluation()}
+     * @since 2.2
+     */
+    protected void finishEvaluation(boolean started) {
+        if (started) {
+            EVALUATIONS.release();
+        }
+    }
+
+    /**
+     * Rejects a call with a 429.
+     *
+     * @param retryAfter how long, in milliseconds, the UI must wait before trying again
+     */
+    private static HttpResponses.HttpResponseException tooManyRequests(long retryAfter) {
+        final long seconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(retryAfter + 999));
+        return new HttpResponses.HttpResponseException() {
+            private static final long serialVersionUID = 4962337934521377460L;
+            @Override
+            public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node)
+                    throws IOException, ServletException {
+                rsp.setHeader("Retry-After", Long.toString(seconds));
+                rsp.setStatus(SC_TOO_MANY_REQUESTS);
+            }
+        };
+    }
+
+    /**
+     * Sends the entity tag of the result back to the UI. If the request carries an If-None-Match header with
+     * the same entity tag, the UI already has this result, so we reply with a 304 and skip the serialization.
+     * Does nothing when not called within a Stapler request.
+     *
+     * @param eTag entity tag of the result about to be returned
+     * @since 2.2
+     */
+    protected void checkNotModified(final String eTag) {
+        final StaplerRequest request = Stapler.getCurrentRequest();
+        final StaplerResponse response = Stapler.getCurrentResponse();
+        if (request == null || response == null)
+            return;
+        response.setHeader("ETag", eTag);
+        if (Utils.matchesETag(request.getHeader("If-None-Match"), eTag)) {
+            throw new HttpResponses.HttpResponseException() {
+                private static final long serialVersionUID = -2146399426154532924L;
+                @Override
+                public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node)
+                        throws IOException, ServletException {
+                    rsp.setHeader("ETag", eTag);
+                    rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                }
+            };
+        }
+    }
+
+    // --- UI bootstrap
+
+    /**
+     * Gets the configuration used by the UnoChoice bootstrap script to create this parameter in the UI. It has
+     * the parameter name, its referenced parameters, and the URL, crumb and methods of the Stapler proxy.
+     *
+     * <p>Binds this parameter to the current session, so it must be called while rendering the page.</p>
+     *
+     * @return JSON configuration
+     * @since 2.2
+     */
+    public String getBootstrapConfig() {
+        return createBootstrapConfig().toString();
+    }
+
+    /**
+     * Creates the configuration used by the UnoChoice bootstrap script. Sub classes can add their own settings.
+     *
+     * @return JSON configuration
+     * @since 2.2
+     */
+    protected JSONObject createBootstrapConfig() {
+        final WebApp webApp = WebApp.getCurrent();
+        final Bound bound = webApp.boundObjectTable.bind(this);
+        final JSONObject proxy = new JSONObject();
+        proxy.element("url", bound.getURL());
+        proxy.element("crumb", webApp.getCrumbIssuer().issueCrumb());
+        proxy.element("methods", getJavaScriptMethodNames(getClass()));
+        final JSONObject config = new JSONObject();
+        config.element("type", "cascade");
+        config.element("name", getName());
+        config.element("randomName", getRandomName());
+        final List<String> referencedParameters = new ArrayList<String>(
+                Arrays.asList(getReferencedParametersAsArray()));
+        if (dropUnusedReferences) {
+            // changes to parameters the script never reads must not evaluate it again
+            referencedParameters.removeAll(getUnusedReferencedParameters());
+        }
+        config.element("referencedParameters", referencedParameters);
+        config.element("lazy", lazy);
+        config.element("proxy", proxy);
+        return config;
+    }
+
+    /**
+     * Gets the names of the methods exposed to JavaScript, the same way Stapler does when creating a proxy.
+     */
+    private static List<String> getJavaScriptMethodNames(Class<?> clazz) {
+        final List<String> names = new ArrayList<String>();
+        for (Method method : clazz.getMethods()) {
+            final JavaScriptMethod annotation = method.getAnnotation(JavaScriptMethod.class);
+            if (annotation == null)
+                continue;
+            if (annotation.name().length == 0) {
+                names.add(method.getName());
+            } else {
+                names.addAll(Arrays.asList(annotation.name()));
+            }
+        }
+        return names;
+    }
+
     public String[] getReferencedParametersAsArray() {
-        String referencedParameters = this.getReferencedParameters();
+        return split(this.getReferencedParameters());
+    }
+
+    /**
+     * Splits comma separated referenced parameters.
+     *
+     * @param referencedParameters comma separated referenced parameters
+     * @return referenced parameter names
+     */
+    static String[] split(String referencedParameters) {
         if (StringUtils.isNotBlank(referencedParameters)) {
             String[] array = referencedParameters.split(",");
             List<String> list = new ArrayList<String>();
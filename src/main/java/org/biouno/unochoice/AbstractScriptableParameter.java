@@ -24,26 +24,44 @@
 
 package org.biouno.unochoice;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
+import javax.annotation.Nonnull;
+
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
+import org.biouno.unochoice.model.GroovyScript;
 import org.biouno.unochoice.model.Script;
+import org.biouno.unochoice.util.ChoiceList;
+import org.biouno.unochoice.util.LayeredMap;
+import org.biouno.unochoice.util.ResultCache;
+import org.biouno.unochoice.util.ResultLimit;
 import org.biouno.unochoice.util.ScriptCallback;
 import org.biouno.unochoice.util.Utils;
 import org.kohsuke.stapler.Ancestor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 
-import hudson.model.AbstractBuild;
+import hudson.Util;
 import hudson.model.AbstractItem;
+import hudson.model.Items;
+import hudson.model.Job;
 import hudson.model.ParameterValue;
-import hudson.model.Project;
+import hudson.model.Run;
 import hudson.model.StringParameterValue;
+import jenkins.model.Jenkins;
 
 /**
  * Base class for parameters with scripts.
@@ -78,18 +96,86 @@ public abstract class AbstractScriptableParameter extends AbstractUnoChoiceParam
      * Constant used to add the parameter name in the enviroment variables map.
      */
     protected static final String JENKINS_PARAMETER_VARIABLE_NAME = "jenkinsParameter";
+    /**
+     * How long, in milliseconds, the default value of a parameter is kept. Builds started by triggers, the CLI or
+     * the REST API without a value for the parameter get its default value, so a burst of builds by the same user
+     * evaluates the script only once.
+     */
+    public static final int DEFAULT_VALUE_CACHE_TTL = Integer.getInteger(
+            AbstractScriptableParameter.class.getName() + ".defaultValueCacheTtl", 5000);
+    /**
+     * Default values, by parameter random name, job full name, script hash and user. The script is part of the
+     * key, so that when the job configuration changes the default value is computed again. The job is part of it
+     * as copied jobs have the same random names, and the user too, as the script may return what only this user
+     * can see, and whether it does cannot be told without running it.
+     */
+    private static final ResultCache<List<Object>, String> DEFAULT_VALUES =
+            new ResultCache<List<Object>, String>(DEFAULT_VALUE_CACHE_TTL, TimeUnit.MILLISECONDS);
+    /**
+     * Evaluations in progress, by script, job, values of the referenced parameters and user. Results are not kept,
+     * but concurrent evaluations of the same script with the same values wait for, and share, the result of the
+     * first one.
+     */
+    private static final ResultCache<List<Object>, Object> COALESCED_EVALUATIONS =
+            new ResultCache<List<Object>, Object>(0, TimeUnit.MILLISECONDS);
+    /**
+     * How long, in milliseconds, the results of parameters shared by the jobs of a folder, or of a multibranch
+     * project, are kept.
+     */
+    public static final int SHARED_RESULTS_TTL = Integer.getInteger(
+            AbstractScriptableParameter.class.getName() + ".sharedResultsTtl", 60000);
+    /**
+     * Results of shared parameters, by folder, parameter name, script, parameters and user.
+     */
+    private static final ResultCache<List<Object>, Object> SHARED_RESULTS =
+            new ResultCache<List<Object>, Object>(SHARED_RESULTS_TTL, TimeUnit.MILLISECONDS);
+    /**
+     * Scripts of shared parameters, by folder and parameter name. The jobs of a folder evaluate the same script
+     * instance, so that a compiled script is compiled only once for all of them. Kept as long as the results.
+     */
+    private static final ResultCache<List<Object>, Script> SHARED_SCRIPTS =
+            new ResultCache<List<Object>, Script>(SHARED_RESULTS_TTL, TimeUnit.MILLISECONDS);
+    /**
+     * Variables that depend on the job. Scripts that read any of them are never shared.
+     */
+    private static final List<String> JOB_VARIABLES = Arrays.asList(JENKINS_PROJECT_VARIABLE_NAME,
+            JENKINS_BUILD_VARIABLE_NAME, JENKINS_PARAMETER_VARIABLE_NAME);
     /**
      * Number of visible items on the screen.
      */
     private volatile int visibleItemCount = 1;
+    /**
+     * Whether the last choices returned were truncated, as the result was too large.
+     */
+    private transient volatile boolean truncated = false;
     /**
      * Script used to render the parameter.
      */
     protected final Script script;
     /**
-     * The project name.
+     * The project full name. Configurations saved with older versions have the project short name.
      */
     private final String projectName;
+    /**
+     * Whether the results and the script are shared with the other jobs of the same folder, or multibranch project.
+     */
+    private boolean shared = false;
+    /**
+     * Cron schedule in which the choices are refreshed in the background.
+     */
+    private String refreshSchedule;
+    /**
+     * Comma separated names of the jobs whose builds invalidate the cached results.
+     */
+    private String upstreamJobs;
+    /**
+     * Maximum number of choices, lower than the global limit.
+     */
+    private Integer maxChoices;
+    /**
+     * Maximum size of the result, in characters, lower than the global limit.
+     */
+    private Integer maxResultSize;
 
     /**
      * Inherited constructor.
@@ -131,7 +217,7 @@ public abstract class AbstractScriptableParameter extends AbstractUnoChoiceParam
                 final Object o = ancestor.getObject();
                 if (o instanceof AbstractItem) {
                     final AbstractItem parentItem = (AbstractItem) o;
-                    projectName = parentItem.getName();
+                    projectName = parentItem.getFullName();
                 }
             }
         }
@@ -147,6 +233,179 @@ public abstract class AbstractScriptableParameter extends AbstractUnoChoiceParam
         return script;
     }
 
+    /**
+     * @return whether the results and the script are shared with the other jobs of the same folder
+     * @since 2.2
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Sets whether the results and the script are shared with the other jobs of the same folder, or of the same
+     * multibranch project. Only applies to Groovy scripts that do not use the job variables, such as
+     * jenkinsProject, as their results are then the same for every job, and that are approved, as only those are
+     * analysed (see {@link GroovyScript#getReadVariables()}). Results are kept for
+     * {@link #SHARED_RESULTS_TTL} milliseconds.
+     *
+     * @param shared whether the results and the script are shared
+     * @since 2.2
+     */
+    @DataBoundSetter
+    public void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * @return cron schedule in which the choices are refreshed in the background, or {@code null}
+     * @since 2.2
+     */
+    public String getRefreshSchedule() {
+        return refreshSchedule;
+    }
+
+    /**
+     * Sets a cron schedule, in the same syntax as build triggers, in which the script is evaluated in the
+     * background. The choices shown when the build form is loaded are then served from memory, from the last
+     * refresh, instead of evaluating the script. Choices that depend on the values of other parameters are still
+     * evaluated when those values change. The script is refreshed as the identity the builds of the job run as,
+     * so only jobs with such an identity are refreshed.
+     *
+     * @param refreshSchedule cron schedule, or {@code null} to evaluate the script every time
+     * @since 2.2
+     */
+    @DataBoundSetter
+    public void setRefreshSchedule(String refreshSchedule) {
+        this.refreshSchedule = Util.fixEmptyAndTrim(refreshSchedule);
+    }
+
+    /**
+     * @return comma separated names of the jobs whose builds invalidate the cached results, or {@code null}
+     * @since 2.2
+     */
+    public String getUpstreamJobs() {
+        return upstreamJobs;
+    }
+
+    /**
+     * Sets the jobs whose builds invalidate the cached results of this parameter, such as the jobs whose
+     * artifacts, or repositories, the script reads. Builds of the job of this parameter, which is the
+     * jenkinsProject of the script, always invalidate them.
+     *
+     * @param upstreamJobs comma separated job names, relative to the folder of the job of this parameter
+     * @since 2.2
+     */
+    @DataBoundSetter
+    public void setUpstreamJobs(String upstreamJobs) {
+        this.upstreamJobs = Util.fixEmptyAndTrim(upstreamJobs);
+    }
+
+    /**
+     * @return maximum number of choices of this parameter, or {@code null} for the global limit
+     * @since 2.2
+     */
+    public Integer getMaxChoices() {
+        return maxChoices;
+    }
+
+    /**
+     * Sets the maximum number of choices of this parameter. Results with more choices are truncated. It cannot
+     * be higher than the global limit, {@link ResultLimit#MAX_CHOICES}.
+     *
+     * @param maxChoices maximum number of choices, or {@code null} for the global limit
+     * @since 2.2
+     */
+    @DataBoundSetter
+    public void setMaxChoices(Integer maxChoices) {
+        this.maxChoices = maxChoices == null || maxChoices <= 0 ? null : maxChoices;
+    }
+
+    /**
+     * @return maximum size of the result of this parameter, in characters, or {@code null} for the global limit
+     * @since 2.2
+     */
+    public Integer getMaxResultSize() {
+        return maxResultSize;
+    }
+
+    /**
+     * Sets the maximum size of the result of this parameter, measured in characters, as in the JSON sent to the
+     * UI. Larger results are truncated. It cannot be higher than the global limit, {@link ResultLimit#MAX_SIZE}.
+     *
+     * @param maxResultSize maximum size, or {@code null} for the global limit
+     * @since 2.2
+     */
+    @DataBoundSetter
+    public void setMaxResultSize(Integer maxResultSize) {
+        this.maxResultSize = maxResultSize == null || maxResultSize <= 0 ? null : maxResultSize;
+    }
+
+    /**
+     * @return {@code true} if the last choices returned had only the first choices of a result that was too large
+     * @since 2.2
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Checks whether the cached results of this parameter depend on the builds of a job.
+     *
+     * @param project the job of this parameter
+     * @param job a job
+     * @return {@code true} if the job is the job of this parameter, or one of its upstream jobs
+     */
+    boolean dependsOn(@Nonnull Job<?, ?> project, @Nonnull Job<?, ?> job) {
+        return project == job || getUpstreamJobNames(project).contains(job.getFullName());
+    }
+
+    /**
+     * Gets the full names of the upstream jobs of this parameter.
+     *
+     * @param project the job of this parameter, which the upstream job names are relative to
+     * @return upstream job full names, empty if there are none
+     * @since 2.2
+     * @see #setUpstreamJobs(String)
+     */
+    public @Nonnull Set<String> getUpstreamJobNames(@Nonnull Job<?, ?> project) {
+        if (upstreamJobs == null) {
+            return Collections.emptySet();
+        }
+        final Set<String> names = new HashSet<String>();
+        for (String upstreamJob : upstreamJobs.split(",")) {
+            upstreamJob = upstreamJob.trim();
+            if (!upstreamJob.isEmpty()) {
+                names.add(Items.getCanonicalName(project.getParent(), upstreamJob));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Invalidates the cached results of this parameter: its default values, and its results shared with the
+     * other jobs of the folder.
+     *
+     * @param project the job of this parameter
+     */
+    void invalidateResults(@Nonnull Job<?, ?> project) {
+        final String randomName = getRandomName();
+        final String fullName = project.getFullName();
+        DEFAULT_VALUES.invalidateAll(new ResultCache.KeyFilter<List<Object>>() {
+            @Override
+            public boolean accept(List<Object> key) {
+                return ObjectUtils.equals(randomName, key.get(0)) && fullName.equals(key.get(1));
+            }
+        });
+        final String scope = project.getParent().getFullName();
+        final String name = getName();
+        SHARED_RESULTS.invalidateAll(new ResultCache.KeyFilter<List<Object>>() {
+            @Override
+            public boolean accept(List<Object> key) {
+                return scope.equals(key.get(0)) && name.equals(key.get(1));
+            }
+        });
+    }
+
     /**
      * Gets the current parameters, be it before or after other referenced parameters triggered an update. Populates
      * parameters common to all evaluations, such as jenkinsProject, which is the current Jenkins project.
@@ -158,37 +417,97 @@ public abstract class AbstractScriptableParameter extends AbstractUnoChoiceParam
     }
 
     /**
-     * Helper parameters used to render the parameter definition.
-     * @return Map with helper parameters
+     * Finds the job of this parameter.
+     *
+     * @return the job, or {@code null} if it cannot be found
+     */
+    Job<?, ?> findProject() {
+        Job<?, ?> project = null;
+        if (StringUtils.isNotBlank(this.projectName)) {
+            // first we try to get the item given its name, which is more efficient. Older versions stored only the
+            // item short name, which may be the full name of an unrelated job, so it must have this parameter
+            project = Utils.getJobByFullName(this.projectName);
+            if (project != null && !Utils.getParameterUUIDs(project).contains(getRandomName())) {
+                project = null;
+            }
+        }
+        if (project == null) {
+            // otherwise, e.g. for Pipeline jobs, or for jobs in folders configured with older versions that stored
+            // only the item short name, we look up the job that uses this UUID in the index
+            project = Utils.findJobByParameterUUID(this.getRandomName());
+        }
+        return project;
+    }
+
+    /**
+     * Helper parameters used to render the parameter definition. The global node properties are laid under them,
+     * from a snapshot shared by all evaluations, without copying it.
+     * @param project the job of this parameter, may be {@code null}
+     * @param jobVariables whether the variables that depend on the job are included
+     * @return Map with helper parameters, where other parameters can be added
      */
-    private Map<Object, Object> getHelperParameters() {
+    private Map<Object, Object> getHelperParameters(Job<?, ?> project, boolean jobVariables) {
         // map with parameters
         final Map<Object, Object> helperParameters = new LinkedHashMap<Object, Object>();
 
-        // First, if the project name is set, we then find the project by its name, and inject into the map
-        Project<?, ?> project = null;
-        if (StringUtils.isNotBlank(this.projectName)) {
-            // first we try to get the item given its name, which is more efficient
-            project = Utils.getProjectByName(this.projectName);
-        } else {
-            // otherwise, in case we don't have the item name, we iterate looking for a job that uses this UUID
-            project = Utils.findProjectByParameterUUID(this.getRandomName());
-        }
-        if (project != null) {
-            helperParameters.put(JENKINS_PROJECT_VARIABLE_NAME, project);
-            AbstractBuild<?, ?> build = project.getLastBuild();
-            if (build != null && build.getHasArtifacts()) {
-                helperParameters.put(JENKINS_BUILD_VARIABLE_NAME, build);
+        if (jobVariables) {
+            // First, if we found the project, we inject it into the map
+            if (project != null) {
+                helperParameters.put(JENKINS_PROJECT_VARIABLE_NAME, project);
+                Run<?, ?> build = project.getLastBuild();
+                if (build != null && build.getHasArtifacts()) {
+                    helperParameters.put(JENKINS_BUILD_VARIABLE_NAME, build);
+                }
             }
+
+            // Here we set the parameter name
+            helperParameters.put(JENKINS_PARAMETER_VARIABLE_NAME, this);
         }
 
-        // Here we set the parameter name
-        helperParameters.put(JENKINS_PARAMETER_VARIABLE_NAME, this);
+        // Here we inject the global node properties, from a snapshot shared by all evaluations
+        return new LayeredMap<Object, Object>(helperParameters, Utils.getGlobalNodeProperties());
+    }
+
+    /**
+     * Gets the scope in which this parameter is shared, which is the full name of the folder, or multibranch
+     * project, of its job.
+     *
+     * @param project the job of this parameter, may be {@code null}
+     * @return the folder full name, or {@code null} if the parameter is not shared
+     */
+    private String getSharedScope(Job<?, ?> project) {
+        if (!shared || project == null || !(script instanceof GroovyScript)) {
+            return null;
+        }
+        // only when the scripts provably never read the job variables, see ScriptVariables. Scripts that cannot be
+        // analysed safely, i.e. sandboxed or not approved, are unknown, so they depend on the job
+        final Set<String> variables = ((GroovyScript) script).getReadVariables();
+        if (variables == null || !Collections.disjoint(variables, JOB_VARIABLES)) {
+            return null;
+        }
+        return project.getParent().getFullName();
+    }
 
-        // Here we inject the global node properties
-        final Map<String, Object> globalNodeProperties = Utils.getGlobalNodeProperties();
-        helperParameters.putAll(globalNodeProperties);
-        return helperParameters;
+    /**
+     * Gets the script evaluated in the given scope. If another job of the scope has the same script, its instance
+     * is used instead, so that it is compiled only once.
+     *
+     * @param scope the folder full name
+     * @return the script to evaluate
+     */
+    private Script getSharedScript(String scope) throws ExecutionException, InterruptedException {
+        final List<Object> key = Arrays.<Object>asList(scope, getName());
+        final Script sharedScript = SHARED_SCRIPTS.get(key, new Callable<Script>() {
+            @Override
+            public Script call() {
+                return script;
+            }
+        });
+        if (script.equals(sharedScript)) {
+            return sharedScript;
+        }
+        SHARED_SCRIPTS.put(key, script);
+        return script;
     }
 
     public Map<Object, Object> getChoices() {
@@ -204,19 +523,19 @@ public abstract class AbstractScriptableParameter extends AbstractUnoChoiceParam
     @Override
     @SuppressWarnings("unchecked") // due to Web + Java and scripts integration
     public Map<Object, Object> getChoices(Map<Object, Object> parameters) {
-        final Object value = eval(parameters);
+        final Object value = ResultLimit.apply(eval(parameters), maxChoices, maxResultSize, getName());
         if (value instanceof Map) {
-            Map<Object, Object> map = (Map<Object, Object>) value;
+            // a read-only view, the map is not copied
+            final Map<Object, Object> map = ChoiceList.view((Map<Object, Object>) value);
             visibleItemCount = map.size();
+            truncated = map instanceof ChoiceList && ((ChoiceList) map).isTruncated();
             return map;
         }
         if (value instanceof List) {
-            // here we take a list and return it as a map
-            final Map<Object, Object> map = new LinkedHashMap<Object, Object>();
-            for (Object o : (List<Object>) value) {
-                map.put(o, o);
-            }
+            // here we take a list and return it as a map of its distinct elements, without copying it
+            final Map<Object, Object> map = ChoiceList.view((List<Object>) value);
             visibleItemCount = map.size();
+            truncated = false;
             return map;
         }
         if (LOGGER.isLoggable(Level.FINE)) {
@@ -231,25 +550,72 @@ public abstract class AbstractScriptableParameter extends AbstractUnoChoiceParam
     }
 
     public String getChoicesAsString(Map<Object, Object> parameters) {
-        final Object value = eval(parameters);
+        final Object value = ResultLimit.apply(eval(parameters), maxChoices, maxResultSize, getName());
         if (value != null)
             return value.toString();
         return "";
     }
 
-    @SuppressWarnings({ "rawtypes", "unchecked" })
     private Object eval(Map<Object, Object> parameters) {
         try {
-            Map<Object, Object> scriptParameters = getHelperParameters();
-            scriptParameters.putAll(parameters);
-            final ScriptCallback<Exception> callback = new ScriptCallback(getName(), script, scriptParameters);
-            return callback.call();
+            if (parameters.isEmpty() && StringUtils.isNotBlank(refreshSchedule)) {
+                // refreshed in the background, so served from memory
+                return ScheduledRefresh.getResult(this, findProject());
+            }
+            return evaluate(parameters);
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.SEVERE, "Error executing script for dynamic parameter", e.getCause());
+            return Collections.emptyMap();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyMap();
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Error executing script for dynamic parameter", e);
             return Collections.emptyMap();
         }
     }
 
+    /**
+     * Evaluates the script with the given parameters, and the helper parameters.
+     *
+     * @param parameters parameters, such as the values of referenced parameters
+     * @return the script result
+     * @throws Exception if the script fails
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    Object evaluate(Map<Object, Object> parameters) throws Exception {
+        final Job<?, ?> project = findProject();
+        final String scope = getSharedScope(project);
+        Map<Object, Object> scriptParameters = getHelperParameters(project, scope == null);
+        scriptParameters.putAll(parameters);
+        final Script script = scope == null ? this.script : getSharedScript(scope);
+        final ScriptCallback<Exception> callback = new ScriptCallback(getName(), script, scriptParameters,
+                project == null ? null : project.getFullName());
+        final Callable<Object> loader = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return callback.call();
+            }
+        };
+        // only the values of the referenced parameters, copied as the script may change its binding, are part of
+        // the key; the helper parameters are the same for every evaluation of the job
+        final Map<Object, Object> values = new HashMap<Object, Object>(parameters);
+        final String user = Jenkins.getAuthentication().getName();
+        if (scope != null) {
+            // shared results are kept, so maps are kept as compact choice lists
+            final List<Object> key = Arrays.<Object>asList(scope, getName(), script, values, user);
+            return SHARED_RESULTS.get(key, new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return ChoiceList.compact(callback.call());
+                }
+            });
+        }
+        final List<Object> key = Arrays.<Object>asList(script, project == null ? null : project.getFullName(),
+                values, user);
+        return COALESCED_EVALUATIONS.get(key, loader);
+    }
+
     /*
      * (non-Javadoc)
      * @see hudson.model.ParameterDefinition#getDefaultParameterValue()
@@ -259,13 +625,31 @@ public abstract class AbstractScriptableParameter extends AbstractUnoChoiceParam
         if (LOGGER.isLoggable(Level.FINE)) {
             LOGGER.entering(AbstractUnoChoiceParameter.class.getName(), "getDefaultParameterValue");
         }
-        Object firstElement = "";
-        final Map<Object, Object> choices = getChoices(Collections.<Object, Object> emptyMap());
-        if (choices != null && !choices.isEmpty()) {
-            firstElement = choices.entrySet().iterator().next().getValue();
+        final Callable<String> defaultValue = new Callable<String>() {
+            @Override
+            public String call() {
+                Object firstElement = "";
+                final Map<Object, Object> choices = getChoices(Collections.<Object, Object> emptyMap());
+                if (choices != null && !choices.isEmpty()) {
+                    firstElement = choices.entrySet().iterator().next().getValue();
+                }
+                return ObjectUtils.toString(firstElement, ""); // Jenkins doesn't like null parameter values
+            }
+        };
+        String value;
+        try {
+            final Job<?, ?> project = findProject();
+            value = DEFAULT_VALUES.get(Arrays.<Object>asList(getRandomName(),
+                    project == null ? null : project.getFullName(), ObjectUtils.hashCode(script),
+                    Jenkins.getAuthentication().getName()), defaultValue);
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.SEVERE, "Error computing the default value of parameter " + getName(), e.getCause());
+            value = "";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            value = "";
         }
         final String name = getName();
-        final String value = ObjectUtils.toString(firstElement, ""); // Jenkins doesn't like null parameter values
         final StringParameterValue stringParameterValue = new StringParameterValue(name, value);
         return stringParameterValue;
     }
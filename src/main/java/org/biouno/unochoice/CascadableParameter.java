@@ -45,10 +45,10 @@ public interface CascadableParameter<T> extends ScriptableParameter<T> {
     public String getReferencedParameters();
 
     /**
-     * Evaluates a script and returns its result as a Map. List values are automatically handled and converted to
-     * Maps too.
+     * Evaluates a script and returns its result as a list with the values and the keys of the choices. List
+     * values are automatically handled and converted to Maps too.
      *
-     * @return script result as Map
+     * @return script result as a list with the choices values and keys
      */
     public List<Object> getChoicesForUI();
 
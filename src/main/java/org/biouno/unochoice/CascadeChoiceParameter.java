@@ -30,6 +30,8 @@ import org.apache.commons.lang.StringUtils;
 import org.biouno.unochoice.model.Script;
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import net.sf.json.JSONObject;
+
 /**
  * <p>A choice parameter, that gets updated when another parameter changes. The simplest
  * use case for this, would be having a list of states, and when the user selected a
@@ -151,6 +153,18 @@ public class CascadeChoiceParameter extends AbstractCascadableParameter {
          return filterLength == null ? (Integer) 1 : filterLength;
      }
 
+    /*
+     * (non-Javadoc)
+     * @see org.biouno.unochoice.AbstractCascadableParameter#createBootstrapConfig()
+     */
+    @Override
+    protected JSONObject createBootstrapConfig() {
+        final JSONObject config = super.createBootstrapConfig();
+        config.element("filterable", Boolean.TRUE.equals(getFilterable()));
+        config.element("filterLength", getFilterLength());
+        return config;
+    }
+
     // --- descriptor
 
     @Extension
@@ -29,8 +29,10 @@ import java.util.List;
 import org.apache.commons.lang.BooleanUtils;
 import org.apache.commons.lang.StringUtils;
 import org.biouno.unochoice.model.Script;
+import org.biouno.unochoice.util.Utils;
 import org.kohsuke.stapler.Ancestor;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.bind.JavaScriptMethod;
@@ -70,6 +72,11 @@ public class DynamicReferenceParameter extends AbstractCascadableParameter {
 
     private final Boolean omitValueField;
 
+    /**
+     * Whether the formatted HTML is fetched by the UI after the page is displayed.
+     */
+    private boolean deferred = false;
+
     /**
      * Constructor called from Jelly with parameters.
      *
@@ -122,12 +129,48 @@ public class DynamicReferenceParameter extends AbstractCascadableParameter {
         return omitValueField;
     }
 
+    /**
+     * @return whether the formatted HTML is fetched by the UI after the page is displayed
+     * @since 2.2
+     */
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    /**
+     * Sets whether the formatted HTML is fetched by the UI after the page is displayed. The page is then sent
+     * with a placeholder, without waiting for the script, and the HTML replaces it once the script returns.
+     *
+     * @param deferred whether the formatted HTML is deferred
+     * @since 2.2
+     */
+    @DataBoundSetter
+    public void setDeferred(boolean deferred) {
+        this.deferred = deferred;
+    }
+
     @JavaScriptMethod
     public String getChoicesAsStringForUI() {
-        String result = getChoicesAsString(getParameters());
+        final boolean started = startEvaluation();
+        final String result;
+        try {
+            result = getChoicesAsString(getParameters());
+        } finally {
+            finishEvaluation(started);
+        }
+        checkNotModified(Utils.computeETag(result));
         return result;
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.biouno.unochoice.AbstractCascadableParameter#createBootstrapConfig()
+     */
+    @Override
+    protected JSONObject createBootstrapConfig() {
+        return super.createBootstrapConfig().element("type", "dynamic").element("deferred", deferred);
+    }
+
     // --- descriptor
 
     @Extension
@@ -0,0 +1,155 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice;
+
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.biouno.unochoice.util.JobIndex;
+import org.biouno.unochoice.util.Utils;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SCMListener;
+import hudson.scm.ChangeLogSet;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * <p>Invalidates the cached results of parameters when a build of their job, or of one of their upstream jobs,
+ * completes, or finds changes in its repositories.</p>
+ *
+ * <p>Parameters are invalidated in the background, and only the jobs that depend on the job are loaded. The results
+ * of parameters with a refresh schedule are then refreshed again, so that they are still served from memory. Other
+ * parameters are evaluated again the next time they are used.</p>
+ *
+ * @since 2.2
+ * @see AbstractScriptableParameter#setUpstreamJobs(String)
+ */
+public final class ResultsInvalidation {
+
+    private static final Logger LOGGER = Logger.getLogger(ResultsInvalidation.class.getName());
+
+    private ResultsInvalidation() {}
+
+    /**
+     * Invalidates the results of the parameters that depend on a job, in the background, so that the thread that
+     * completed the build is not held up. Only the jobs that depend on the job, as found in the {@link JobIndex},
+     * are loaded.
+     *
+     * @param job job with a new build, or with changes
+     * @return the background task
+     */
+    static Future<?> invalidate(@Nonnull Job<?, ?> job) {
+        final String fullName = job.getFullName();
+        return Timer.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                invalidate(fullName);
+            }
+        });
+    }
+
+    private static void invalidate(String fullName) {
+        // to find the parameters, which are refreshed with the identity of their jobs
+        final SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+        try {
+            final Job<?, ?> job = Jenkins.getInstance().getItemByFullName(fullName, Job.class);
+            if (job == null) {
+                return;
+            }
+            for (String dependentName : JobIndex.getDependentJobNames(fullName)) {
+                final Job<?, ?> project = Jenkins.getInstance().getItemByFullName(dependentName, Job.class);
+                if (project == null) {
+                    continue;
+                }
+                for (ParameterDefinition parameterDefinition : Utils.getJobParameterDefinitions(project)) {
+                    if (parameterDefinition instanceof AbstractScriptableParameter) {
+                        final AbstractScriptableParameter parameter = (AbstractScriptableParameter) parameterDefinition;
+                        if (parameter.dependsOn(project, job)) {
+                            parameter.invalidateResults(project);
+                            if (parameter.getRefreshSchedule() != null) {
+                                refresh(parameter, project);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+    }
+
+    /**
+     * Refreshes the results of a parameter with a refresh schedule, so that they are still served from memory.
+     */
+    private static void refresh(AbstractScriptableParameter parameter, Job<?, ?> project) {
+        try {
+            // as the identity of the job, never as the system user
+            ScheduledRefresh.refresh(parameter, project);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, String.format("Failed to refresh parameter %s in %s, keeping its "
+                    + "previous choices", parameter.getName(), project.getFullName()), e);
+        }
+    }
+
+    /**
+     * Invalidates results when a build completes, as its artifacts, or the jenkinsBuild of the scripts of its
+     * job, may have changed.
+     */
+    @Extension
+    public static final class BuildListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onCompleted(Run<?, ?> run, @Nonnull TaskListener listener) {
+            invalidate(run.getParent());
+        }
+    }
+
+    /**
+     * Invalidates results when a build finds changes in its repositories.
+     */
+    @Extension
+    public static final class ChangesListener extends SCMListener {
+        @Override
+        public void onChangeLogParsed(Run<?, ?> build, SCM scm, TaskListener listener, ChangeLogSet<?> changelog) {
+            if (!changelog.isEmptySet()) {
+                invalidate(build.getParent());
+            }
+        }
+    }
+
+}
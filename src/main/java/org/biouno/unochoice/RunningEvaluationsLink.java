@@ -0,0 +1,118 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.biouno.unochoice.util.ResultLimit;
+import org.biouno.unochoice.util.RunningEvaluation;
+import org.biouno.unochoice.util.ScriptClassCache;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+
+/**
+ * <p>Management page listing the Active Choices scripts being evaluated right now, with their job, parameter,
+ * user, elapsed time and a sample of their stack. Administrators can cancel an evaluation, in which case the
+ * request waiting for it receives the result of the fallback script.</p>
+ *
+ * <p>It also shows the counters of the compiled scripts cache, and the number of truncated results.</p>
+ *
+ * @since 2.2
+ */
+@Extension
+public class RunningEvaluationsLink extends ManagementLink {
+
+    private static final Logger LOGGER = Logger.getLogger(RunningEvaluationsLink.class.getName());
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "active-choices-evaluations";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Active Choices Evaluations";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Active Choices scripts being evaluated right now, the compiled scripts cache, and truncated results.";
+    }
+
+    /**
+     * @return the evaluations in progress
+     */
+    public List<RunningEvaluation> getEvaluations() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return RunningEvaluation.getAll();
+    }
+
+    /**
+     * @return the compiled scripts cache
+     */
+    public ScriptClassCache getScriptClassCache() {
+        return ScriptClassCache.get();
+    }
+
+    /**
+     * @return number of results truncated since Jenkins started
+     */
+    public long getTruncatedResults() {
+        return ResultLimit.getTruncatedResults();
+    }
+
+    /**
+     * Cancels an evaluation.
+     *
+     * @param id evaluation id
+     * @return redirect to the list of evaluations
+     */
+    @RequirePOST
+    public HttpResponse doCancel(@QueryParameter long id) {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        final RunningEvaluation evaluation = RunningEvaluation.get(id);
+        if (evaluation != null) {
+            LOGGER.log(Level.INFO, "Cancelling evaluation of parameter {0} in {1}, for {2}",
+                    new Object[] { evaluation.getParameter(), evaluation.getJob(), evaluation.getUser() });
+            evaluation.cancel();
+        }
+        return HttpResponses.redirectToDot();
+    }
+
+}
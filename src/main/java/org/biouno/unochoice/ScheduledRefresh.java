@@ -0,0 +1,304 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.commons.lang.StringUtils;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.biouno.unochoice.util.ChoiceList;
+import org.biouno.unochoice.util.Utils;
+
+import antlr.ANTLRException;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Items;
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.Tasks;
+import hudson.scheduler.CronTabList;
+import hudson.scheduler.Hash;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+/**
+ * <p>Refreshes, in the background, the choices of parameters with a refresh schedule.</p>
+ *
+ * <p>Every minute, the parameters of all the jobs are checked, as with build triggers. The scripts of the
+ * parameters due since the last check are evaluated, without parameters, and each new result replaces the
+ * previous one atomically. If a script fails, the previous result is kept.</p>
+ *
+ * <p>Results are shared by all users, so they are never computed as the system user, nor as the user of a request.
+ * They are computed as the identity that the builds of the job run as, which must be configured, for instance with
+ * the Authorize Project plug-in. Parameters of jobs without such an identity are not refreshed. Until a parameter
+ * is refreshed, it is evaluated for each request, as the user of the request, and the result is not kept.</p>
+ *
+ * @since 2.2
+ */
+@Extension
+public class ScheduledRefresh extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(ScheduledRefresh.class.getName());
+
+    /**
+     * Maximum number of minutes checked for due parameters, if the previous check was late.
+     */
+    private static final int MAX_MINUTES = 60;
+
+    /**
+     * Last result of each parameter, by job full name, UUID, name and script.
+     */
+    private static final ConcurrentMap<List<Object>, Object> RESULTS = new ConcurrentHashMap<List<Object>, Object>();
+
+    /**
+     * The minute of the last check.
+     */
+    private Calendar lastChecked;
+
+    public ScheduledRefresh() {
+        super("Active Choices scheduled refresh");
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see hudson.model.PeriodicWork#getRecurrencePeriod()
+     */
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    /**
+     * Gets the last result of a parameter with a refresh schedule. If the parameter was not refreshed yet, its
+     * script is evaluated now, as the current user, and the result is not kept, as it may show what only this
+     * user can see.
+     *
+     * @param parameter parameter with a refresh schedule
+     * @param job job of the parameter, or {@code null} if unknown
+     * @return the last result
+     * @throws Exception if the script has to be evaluated, and fails
+     */
+    static Object getResult(@Nonnull AbstractScriptableParameter parameter, @CheckForNull Job<?, ?> job)
+            throws Exception {
+        // a copied job has the same UUIDs, so its parameters may be found in the original job
+        final Object result = job == null || !defines(job, parameter) ? null : RESULTS.get(key(parameter, job));
+        if (result != null) {
+            return result;
+        }
+        return parameter.evaluate(Collections.<Object, Object>emptyMap());
+    }
+
+    private static boolean defines(Job<?, ?> job, AbstractScriptableParameter parameter) {
+        for (ParameterDefinition parameterDefinition : Utils.getJobParameterDefinitions(job)) {
+            if (parameterDefinition == parameter) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates the script of a parameter, as the identity of its job, and replaces its last result. Parameters
+     * of jobs without an identity are not refreshed, see {@link #getAuthentication(Job)}.
+     *
+     * @param parameter parameter with a refresh schedule
+     * @param job job of the parameter
+     * @return the new result, or {@code null} if the job has no identity
+     * @throws Exception if the script fails
+     */
+    static @CheckForNull Object refresh(@Nonnull AbstractScriptableParameter parameter, @Nonnull Job<?, ?> job)
+            throws Exception {
+        final Authentication authentication = getAuthentication(job);
+        if (authentication == null) {
+            LOGGER.log(Level.FINE, "Not refreshing parameter {0} in {1}, as the job has no identity to run as",
+                    new Object[] { parameter.getName(), job.getFullName() });
+            return null;
+        }
+        final Object result;
+        final SecurityContext previous = ACL.impersonate(authentication);
+        try {
+            // kept until the next refresh, so maps are kept as compact choice lists
+            result = ChoiceList.compact(parameter.evaluate(Collections.<Object, Object>emptyMap()));
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+        if (result != null) {
+            RESULTS.put(key(parameter, job), result);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the identity that refreshes the parameters of a job, which is the identity its builds run as, unless
+     * it is the system user, as it is when no identity is configured. The anonymous user would lose the job
+     * variables, such as <code>jenkinsProject</code>, and serve what it sees to every user, so there is none then.
+     *
+     * @param job job, or {@code null} if unknown
+     * @return identity used to refresh the parameters of the job, or {@code null} if they must not be refreshed
+     */
+    static @CheckForNull Authentication getAuthentication(@CheckForNull Job<?, ?> job) {
+        if (job instanceof Queue.Task) {
+            final Authentication authentication = Tasks.getAuthenticationOf((Queue.Task) job);
+            if (!ACL.SYSTEM.getName().equals(authentication.getName())) {
+                return authentication;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the refresh schedule of a parameter.
+     *
+     * @param parameter parameter
+     * @return the schedule, or {@code null} if the parameter has none
+     * @throws ANTLRException if the schedule is not valid
+     */
+    static @CheckForNull CronTabList getSchedule(@Nonnull AbstractScriptableParameter parameter)
+            throws ANTLRException {
+        final String refreshSchedule = parameter.getRefreshSchedule();
+        if (StringUtils.isBlank(refreshSchedule)) {
+            return null;
+        }
+        final String seed = StringUtils.defaultString(parameter.getRandomName(), parameter.getName());
+        return CronTabList.create(refreshSchedule, Hash.from(seed));
+    }
+
+    private static List<Object> key(AbstractScriptableParameter parameter, Job<?, ?> job) {
+        // the job is part of the key, as copied jobs have the same UUIDs, and the script too, so that results of a
+        // previous configuration are not used
+        return Arrays.<Object>asList(job.getFullName(), parameter.getRandomName(), parameter.getName(),
+                parameter.getScript());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see hudson.model.AsyncPeriodicWork#execute(hudson.model.TaskListener)
+     */
+    @Override
+    protected void execute(TaskListener listener) {
+        // to find the parameters, which are evaluated with the identity of their jobs
+        final SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+        try {
+            refreshDue();
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+    }
+
+    /**
+     * Refreshes the parameters due since the last check, and those that were not refreshed yet.
+     */
+    private void refreshDue() {
+        final List<Calendar> minutes = getMinutesToCheck();
+        final Set<List<Object>> scheduled = new HashSet<List<Object>>();
+        for (Job<?, ?> job : Items.allItems(ACL.SYSTEM, Jenkins.getInstance(), Job.class)) {
+            for (ParameterDefinition parameterDefinition : Utils.getJobParameterDefinitions(job)) {
+                if (!(parameterDefinition instanceof AbstractScriptableParameter)) {
+                    continue;
+                }
+                final AbstractScriptableParameter parameter = (AbstractScriptableParameter) parameterDefinition;
+                final CronTabList schedule;
+                try {
+                    schedule = getSchedule(parameter);
+                } catch (ANTLRException e) {
+                    LOGGER.log(Level.WARNING, String.format("Invalid refresh schedule of parameter %s in %s",
+                            parameter.getName(), job.getFullName()), e);
+                    continue;
+                }
+                if (schedule == null || getAuthentication(job) == null) {
+                    continue;
+                }
+                final List<Object> key = key(parameter, job);
+                scheduled.add(key);
+                if (RESULTS.containsKey(key) && !isDue(schedule, minutes)) {
+                    continue;
+                }
+                try {
+                    refresh(parameter, job);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, String.format("Failed to refresh parameter %s in %s, keeping its "
+                            + "previous choices", parameter.getName(), job.getFullName()), e);
+                }
+            }
+        }
+        // parameters that were removed, or changed
+        RESULTS.keySet().retainAll(scheduled);
+    }
+
+    /**
+     * Gets the minutes since the last check, up to now.
+     */
+    private List<Calendar> getMinutesToCheck() {
+        final Calendar now = Calendar.getInstance();
+        now.set(Calendar.SECOND, 0);
+        now.set(Calendar.MILLISECOND, 0);
+        final List<Calendar> minutes = new ArrayList<Calendar>();
+        Calendar minute = (Calendar) now.clone();
+        if (lastChecked != null) {
+            // empty, if this minute was checked already
+            minute = (Calendar) lastChecked.clone();
+            minute.add(Calendar.MINUTE, 1);
+        }
+        final Calendar earliest = (Calendar) now.clone();
+        earliest.add(Calendar.MINUTE, 1 - MAX_MINUTES);
+        if (minute.before(earliest)) {
+            minute = earliest;
+        }
+        while (!minute.after(now)) {
+            minutes.add((Calendar) minute.clone());
+            minute.add(Calendar.MINUTE, 1);
+        }
+        lastChecked = now;
+        return minutes;
+    }
+
+    private static boolean isDue(CronTabList schedule, List<Calendar> minutes) {
+        for (Calendar minute : minutes) {
+            if (schedule.check(minute)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
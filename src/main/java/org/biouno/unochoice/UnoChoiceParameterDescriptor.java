@@ -27,10 +27,25 @@ package org.biouno.unochoice;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.apache.commons.lang.StringUtils;
 import org.biouno.unochoice.model.AbstractScript;
+import org.biouno.unochoice.util.ScriptVariables;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+import org.jenkinsci.plugins.scriptsecurity.scripts.UnapprovedUsageException;
+import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyLanguage;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.RelativePath;
+
+import antlr.ANTLRException;
 
 import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.model.Job;
 import hudson.model.ParameterDefinition.ParameterDescriptor;
+import hudson.scheduler.CronTabList;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
 
 /**
  * Descriptor for Uno Choice parameters.
@@ -48,4 +63,66 @@ public class UnoChoiceParameterDescriptor extends ParameterDescriptor {
         return list;
     }
 
+    /**
+     * Validates the refresh schedule of a parameter, and warns when its job has no identity to refresh it as.
+     *
+     * @param item the job being configured
+     * @param value cron schedule
+     * @return validation result
+     * @since 2.2
+     */
+    public FormValidation doCheckRefreshSchedule(@AncestorInPath Item item, @QueryParameter String value) {
+        if (StringUtils.isBlank(value)) {
+            return FormValidation.ok();
+        }
+        try {
+            CronTabList.create(value);
+        } catch (ANTLRException e) {
+            return FormValidation.error(e.getMessage());
+        }
+        if (ScheduledRefresh.getAuthentication(item instanceof Job ? (Job<?, ?>) item : null) == null) {
+            return FormValidation.warning("The builds of this job run as the system user, so the script is not "
+                    + "refreshed, but evaluated every time. Configure the identity they run as, e.g. with the "
+                    + "Authorize Project plug-in");
+        }
+        return FormValidation.ok();
+    }
+
+    /**
+     * Warns when the Groovy script of a parameter never reads some of its referenced parameters, which evaluate it
+     * again for nothing whenever they change. The script is analysed without running it, but it is compiled, so
+     * only scripts that are approved, or that the user could run in the script console, are analysed.
+     *
+     * @param item the job being configured
+     * @param value comma separated referenced parameters
+     * @param script Groovy script of the parameter
+     * @return a warning with the unused referenced parameters, or ok
+     * @since 2.2
+     */
+    public FormValidation doCheckReferencedParameters(@AncestorInPath Item item, @QueryParameter String value,
+            @RelativePath("script/script") @QueryParameter String script) {
+        if (StringUtils.isBlank(value) || StringUtils.isBlank(script)) {
+            return FormValidation.ok();
+        }
+        final Jenkins instance = Jenkins.getInstance();
+        if (item == null ? !instance.hasPermission(Jenkins.ADMINISTER) : !item.hasPermission(Item.CONFIGURE)) {
+            return FormValidation.ok();
+        }
+        if (!instance.hasPermission(Jenkins.RUN_SCRIPTS)) {
+            try {
+                ScriptApproval.get().using(script, GroovyLanguage.get());
+            } catch (UnapprovedUsageException e) {
+                return FormValidation.ok();
+            }
+        }
+        final List<String> unused = AbstractCascadableParameter.getUnusedReferencedParameters(
+                AbstractCascadableParameter.split(value),
+                ScriptVariables.getReadVariables(script, instance.getPluginManager().uberClassLoader));
+        if (unused.isEmpty()) {
+            return FormValidation.ok();
+        }
+        return FormValidation.warning("The script never reads the referenced parameters "
+                + StringUtils.join(unused, ", ") + ", changing them evaluates it again for nothing");
+    }
+
 }
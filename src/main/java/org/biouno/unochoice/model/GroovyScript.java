@@ -24,23 +24,53 @@
 
 package org.biouno.unochoice.model;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import hudson.markup.RawHtmlMarkupFormatter;
+import org.biouno.unochoice.util.CircuitBreaker;
+import org.biouno.unochoice.util.LayeredMap;
+import org.biouno.unochoice.util.ResultLimit;
+import org.biouno.unochoice.util.RunningEvaluation;
+import org.biouno.unochoice.util.ScriptClassCache;
+import org.biouno.unochoice.util.ScriptProfiler;
+import org.biouno.unochoice.util.ScriptVariables;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.MultipleCompilationErrorsException;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.RejectedAccessException;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.jenkinsci.plugins.scriptsecurity.scripts.ApprovalContext;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+import org.jenkinsci.plugins.scriptsecurity.scripts.UnapprovedUsageException;
+import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyLanguage;
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import groovy.lang.Binding;
+import groovy.transform.CompileStatic;
 import hudson.Extension;
 import hudson.PluginManager;
 import hudson.Util;
+import hudson.model.Item;
+import hudson.util.FormValidation;
 import jenkins.model.Jenkins;
 
 /**
@@ -58,6 +88,23 @@ public class GroovyScript extends AbstractScript {
 
     private static final Logger LOGGER = Logger.getLogger(GroovyScript.class.getName());
 
+    /**
+     * Type checking extension used in static compilation, to resolve the binding variables.
+     */
+    private static final String STATIC_COMPILATION_EXTENSION = "org/biouno/unochoice/model/bindingVariables.groovy";
+
+    /**
+     * Whether statically compiled scripts use invokedynamic. Requires the invokedynamic version of Groovy.
+     */
+    private static final boolean INVOKE_DYNAMIC = Boolean.getBoolean(GroovyScript.class.getName() + ".indy");
+
+    /**
+     * Maximum number of circuit breakers kept per script, one per distinct set of parameter values. The least
+     * recently used are discarded first.
+     */
+    private static final int MAX_CIRCUIT_BREAKERS = Integer.getInteger(
+            GroovyScript.class.getName() + ".maxCircuitBreakers", 100);
+
     /**
      * Script content.
      */
@@ -79,6 +126,30 @@ public class GroovyScript extends AbstractScript {
     @Nullable
     private SecureGroovyScript secureFallbackScript;
 
+    /**
+     * Circuit breakers of the script, by the values of its String parameters, such as the referenced parameters.
+     * While open, the script is skipped in favour of the fallback script. Guarded by this.
+     */
+    private transient Map<Map<String, String>, CircuitBreaker> circuitBreakers;
+
+    /**
+     * The last read-only parameters laid under the parameters of evaluations, such as the global node properties,
+     * expanded, see {@link #createBinding(Map)}.
+     */
+    private static volatile ExpandedParameters expandedParameters;
+
+    /**
+     * Binding variables read by the script and the fallback script, or {@code null} if unknown. Not persisted.
+     */
+    private transient volatile Set<String> readVariables;
+
+    private transient volatile boolean readVariablesAnalysed = false;
+
+    /**
+     * Whether the script, if not sandboxed, is statically compiled.
+     */
+    private boolean staticCompilation = false;
+
     @Deprecated
     public GroovyScript(String script, String fallbackScript) {
         this(new SecureGroovyScript(script, false, null), new SecureGroovyScript(fallbackScript, false, null));
@@ -119,6 +190,26 @@ public class GroovyScript extends AbstractScript {
         return secureFallbackScript;
     }
 
+    /**
+     * @return whether the script, if not sandboxed, is statically compiled
+     * @since 2.2
+     */
+    public boolean isStaticCompilation() {
+        return staticCompilation;
+    }
+
+    /**
+     * Sets whether the script is statically compiled. Applies only to scripts that are not sandboxed, as the
+     * sandbox needs dynamic calls to check them. The script must still be approved.
+     *
+     * @param staticCompilation whether the script, if not sandboxed, is statically compiled
+     * @since 2.2
+     */
+    @DataBoundSetter
+    public void setStaticCompilation(boolean staticCompilation) {
+        this.staticCompilation = staticCompilation;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -139,6 +230,155 @@ public class GroovyScript extends AbstractScript {
         if (secureScript == null) {
             return null;
         }
+        final ClassLoader cl = getClassLoader();
+        final Binding context = createBinding(parameters);
+
+        final CircuitBreaker breaker = getCircuitBreaker(parameters);
+        if (!breaker.allowRequest()) {
+            // never a result computed for other values, or for another user
+            return evalFallback(cl, context,
+                    new IllegalStateException("Script skipped after repeated failures, waiting to retry it"));
+        }
+        try {
+            // limited before it is kept by the circuit breaker
+            Object returnValue = ResultLimit.apply(evaluate(cl, context), "a Groovy script");
+            if (returnValue instanceof CharSequence) {
+                if (secureScript.isSandbox()) {
+                    returnValue = new RawHtmlMarkupFormatter(false).translate(returnValue.toString());
+                }
+            }
+            breaker.recordSuccess();
+            return returnValue;
+        } catch (Exception re) {
+            if (RunningEvaluation.clearCancelled()) {
+                // cancelled by an administrator, not an outage
+                breaker.recordIgnoredFailure();
+            } else if (re instanceof UnapprovedUsageException || re instanceof RejectedAccessException) {
+                // not an outage, the script will fail the same way until it is approved
+                breaker.recordIgnoredFailure();
+            } else {
+                breaker.recordFailure();
+            }
+            return evalFallback(cl, context, re);
+        }
+    }
+
+    /**
+     * Evaluates the script once, with a profiler. The fallback script, and the circuit breaker, are not used.
+     *
+     * @param parameters script parameters
+     * @return the profiler, with the script times and the methods it called
+     * @throws Exception if the script fails
+     * @since 2.2
+     */
+    public ScriptProfiler profile(Map<String, String> parameters) throws Exception {
+        final ScriptProfiler profiler = new ScriptProfiler();
+        if (secureScript == null) {
+            return profiler;
+        }
+        final ClassLoader cl = getClassLoader();
+        final Binding context = createBinding(parameters);
+        profiler.start();
+        try {
+            evaluate(cl, context);
+        } finally {
+            profiler.stop();
+        }
+        return profiler;
+    }
+
+    /**
+     * Evaluates the script. Sandboxed scripts, and scripts with additional classpath entries, are evaluated by the
+     * script security plug-in, which checks what they call, the classes they load and their classpath. Other
+     * scripts are approved as a whole by an administrator, and run with a script class compiled once and kept in
+     * the {@link ScriptClassCache}, statically compiled if enabled. The compiled class is shared by the scripts
+     * with the same text and settings, so that it is not compiled again when a new instance of the same script
+     * is evaluated, as for Scriptler scripts.
+     *
+     * @param cl class loader
+     * @param context script binding
+     * @return the script result
+     * @throws Exception if the script is not approved, fails to compile, or fails
+     */
+    private Object evaluate(ClassLoader cl, Binding context) throws Exception {
+        if (secureScript.isSandbox() || !secureScript.getClasspath().isEmpty()) {
+            return secureScript.evaluate(cl, context);
+        }
+        final String text = secureScript.getScript();
+        // checked on every evaluation, as the approval may be revoked
+        ScriptApproval.get().using(text, GroovyLanguage.get());
+        final boolean compileStatic = staticCompilation;
+        final Class<? extends groovy.lang.Script> scriptClass;
+        try {
+            scriptClass = ScriptClassCache.get().getScriptClass(getClassKey(secureScript, compileStatic), cl,
+                    createCompilerConfiguration(compileStatic), text,
+                    "Script" + Integer.toHexString(text.hashCode()) + ".groovy");
+        } catch (MultipleCompilationErrorsException e) {
+            if (!compileStatic) {
+                throw e;
+            }
+            throw new IllegalArgumentException("Script cannot be statically compiled, declare the types of its "
+                    + "variables or disable static compilation: " + e.getMessage(), e);
+        }
+        return InvokerHelper.createScript(scriptClass, context).run();
+    }
+
+    /**
+     * Gets the keys of the classes compiled for this script in the {@link ScriptClassCache}, so that they can be
+     * disposed of when the script is reconfigured. Sandboxed scripts, and scripts with classpath entries, are not
+     * compiled into the cache.
+     *
+     * @return keys of the compiled classes, empty if the script is not compiled into the cache
+     * @since 2.2
+     */
+    public @Nonnull Set<Object> getClassKeys() {
+        if (secureScript == null || secureScript.isSandbox() || !secureScript.getClasspath().isEmpty()) {
+            return Collections.emptySet();
+        }
+        // either may have been compiled, before the static compilation setting changed
+        final Set<Object> keys = new HashSet<Object>();
+        keys.add(getClassKey(secureScript, false));
+        keys.add(getClassKey(secureScript, true));
+        return keys;
+    }
+
+    /**
+     * Gets the key of the classes compiled for a script: its text, and how it is compiled.
+     *
+     * @param script script
+     * @param compileStatic whether the script is statically compiled
+     * @return key of the compiled classes
+     */
+    private static Object getClassKey(SecureGroovyScript script, boolean compileStatic) {
+        return Arrays.<Object>asList(script.getScript(), script.isSandbox(), script.getClasspath(), compileStatic);
+    }
+
+    /**
+     * Creates the compiler configuration of a script. With static compilation, variables not declared in the
+     * script come from the binding, and are resolved dynamically, as <code>Object</code>.
+     *
+     * @param compileStatic whether the script is statically compiled
+     * @return compiler configuration
+     */
+    private static CompilerConfiguration createCompilerConfiguration(boolean compileStatic) {
+        final CompilerConfiguration configuration = new CompilerConfiguration();
+        if (compileStatic) {
+            configuration.addCompilationCustomizers(new ASTTransformationCustomizer(
+                    Collections.singletonMap("extensions", (Object) STATIC_COMPILATION_EXTENSION),
+                    CompileStatic.class));
+            if (INVOKE_DYNAMIC) {
+                configuration.getOptimizationOptions().put("indy", Boolean.TRUE);
+            }
+        }
+        return configuration;
+    }
+
+    /**
+     * Gets the class loader used to evaluate scripts, that can see all plug-ins classes.
+     *
+     * @return class loader
+     */
+    private ClassLoader getClassLoader() {
         final Jenkins instance = Jenkins.getInstance();
         ClassLoader cl = null;
         if (instance != null) {
@@ -152,49 +392,186 @@ public class GroovyScript extends AbstractScript {
         if (cl == null) {
             cl = Thread.currentThread().getContextClassLoader();
         }
+        return cl;
+    }
 
-        final Binding context = new Binding();
+    /**
+     * Creates the script binding, with the given parameters. Environment variables in String values are expanded.
+     * Read-only parameters laid under the others, such as the global node properties (see {@link LayeredMap}),
+     * are not copied, and are expanded once, not on every evaluation.
+     *
+     * @param parameters script parameters
+     * @return binding
+     */
+    private Binding createBinding(Map<String, String> parameters) {
+        if (parameters instanceof LayeredMap) {
+            final LayeredMap<?, ?> layers = (LayeredMap<?, ?>) parameters;
+            return new Binding(new LayeredMap<Object, Object>(expand(layers.getTop()),
+                    getExpandedParameters(layers.getBottom())));
+        }
+        return new Binding(expand(parameters));
+    }
 
-        // @SuppressWarnings("unchecked")
+    private static Map<Object, Object> expand(Map<?, ?> parameters) {
+        final Map<Object, Object> variables = new LinkedHashMap<Object, Object>();
         final Map<String, String> envVars = System.getenv();
-        for (Entry<String, String> parameter : parameters.entrySet()) {
+        for (Entry<?, ?> parameter : parameters.entrySet()) {
             Object value = parameter.getValue();
             if (value != null) {
                 if (value instanceof String) {
                     value = Util.replaceMacro((String) value, envVars);
                 }
-                context.setVariable(parameter.getKey().toString(), value);
+                variables.put(parameter.getKey().toString(), value);
             }
         }
+        return variables;
+    }
 
-        try {
-            Object returnValue = secureScript.evaluate(cl, context);
-            if (returnValue instanceof CharSequence) {
-                if (secureScript.isSandbox()) {
-                    return new RawHtmlMarkupFormatter(false).translate(returnValue.toString());
+    private static Map<Object, Object> getExpandedParameters(Map<?, ?> parameters) {
+        ExpandedParameters current = expandedParameters;
+        if (current == null || current.source != parameters) {
+            current = new ExpandedParameters(parameters);
+            expandedParameters = current;
+        }
+        return current.variables;
+    }
+
+    /**
+     * Read-only parameters, with environment variables expanded.
+     */
+    private static final class ExpandedParameters {
+        private final Map<?, ?> source;
+        private final Map<Object, Object> variables;
+
+        ExpandedParameters(Map<?, ?> source) {
+            this.source = source;
+            this.variables = Collections.unmodifiableMap(expand(source));
+        }
+    }
+
+    /**
+     * Evaluates the fallback script, after the script failed.
+     *
+     * @param cl class loader
+     * @param context script binding
+     * @param re the script failure
+     * @return the fallback script result
+     * @throws RuntimeException if there is no fallback script, or if it fails too
+     */
+    private Object evalFallback(ClassLoader cl, Binding context, Exception re) throws RuntimeException {
+        if (this.secureFallbackScript != null) {
+            try {
+                LOGGER.log(Level.FINEST, "Fallback to default script...", re);
+                Object returnValue = ResultLimit.apply(secureFallbackScript.evaluate(cl, context),
+                        "a Groovy fallback script");
+                if (returnValue instanceof CharSequence) {
+                    if (secureFallbackScript.isSandbox()) {
+                        return new RawHtmlMarkupFormatter(false).translate(returnValue.toString());
+                    }
                 }
+                return returnValue;
+            } catch (Exception e2) {
+                LOGGER.log(Level.WARNING, "Error executing fallback script", e2);
+                throw new RuntimeException("Failed to evaluate fallback script: " + e2.getMessage(), e2);
             }
-            return returnValue;
-        } catch (Exception re) {
-            if (this.secureFallbackScript != null) {
-                try {
-                    LOGGER.log(Level.FINEST, "Fallback to default script...", re);
-                    Object returnValue = secureFallbackScript.evaluate(cl, context);
-                    if (returnValue instanceof CharSequence) {
-                        if (secureFallbackScript.isSandbox()) {
-                            return new RawHtmlMarkupFormatter(false).translate(returnValue.toString());
-                        }
-                    }
-                    return returnValue;
-                } catch (Exception e2) {
-                    LOGGER.log(Level.WARNING, "Error executing fallback script", e2);
-                    throw new RuntimeException("Failed to evaluate fallback script: " + e2.getMessage(), e2);
+        } else {
+            LOGGER.log(Level.WARNING, "No fallback script configured for '%s'");
+            throw new RuntimeException("Failed to evaluate script: " + re.getMessage(), re);
+        }
+    }
+
+    /**
+     * Gets the binding variables that the script, or the fallback script, read, such as the values of referenced
+     * parameters. The scripts are analysed the first time, without running them.
+     *
+     * <p>Compiling a script runs its AST transformations, so only approved scripts are analysed. The variables
+     * read by sandboxed, or not yet approved, scripts are unknown.</p>
+     *
+     * @return the names of the variables, or {@code null} if they are unknown
+     * @since 2.2
+     * @see ScriptVariables
+     */
+    public @CheckForNull Set<String> getReadVariables() {
+        if (!readVariablesAnalysed) {
+            if (!isApproved(secureScript) || !isApproved(secureFallbackScript)) {
+                // not cached, the scripts may be approved later
+                return null;
+            }
+            Set<String> variables = secureScript == null ? Collections.<String>emptySet()
+                    : ScriptVariables.getReadVariables(secureScript.getScript(), getClassLoader());
+            if (variables != null && secureFallbackScript != null) {
+                final Set<String> fallbackVariables = ScriptVariables.getReadVariables(
+                        secureFallbackScript.getScript(), getClassLoader());
+                if (fallbackVariables == null) {
+                    variables = null;
+                } else {
+                    variables = new HashSet<String>(variables);
+                    variables.addAll(fallbackVariables);
                 }
-            } else {
-                LOGGER.log(Level.WARNING, "No fallback script configured for '%s'");
-                throw new RuntimeException("Failed to evaluate script: " + re.getMessage(), re);
             }
+            readVariables = variables;
+            readVariablesAnalysed = true;
+        }
+        return readVariables;
+    }
+
+    /**
+     * Checks whether a script may be compiled outside of the sandbox, i.e. it is approved to run.
+     *
+     * @param script script, may be {@code null}
+     * @return {@code true} if there is no script, or if it is approved, {@code false} otherwise
+     */
+    private static boolean isApproved(@CheckForNull SecureGroovyScript script) {
+        if (script == null) {
+            return true;
+        }
+        if (script.isSandbox()) {
+            return false;
+        }
+        try {
+            ScriptApproval.get().using(script.getScript(), GroovyLanguage.get());
+            return true;
+        } catch (UnapprovedUsageException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the circuit breaker of this script for the given parameters, creating it if needed (it is not
+     * persisted). Failures with some values, such as a referenced parameter value the script cannot handle, do
+     * not stop the script from being called with other values.
+     *
+     * @param parameters script parameters
+     * @return the circuit breaker
+     */
+    private synchronized CircuitBreaker getCircuitBreaker(Map<?, ?> parameters) {
+        if (parameters instanceof LayeredMap) {
+            // read-only parameters, such as the global node properties, are the same for every call of the script
+            parameters = ((LayeredMap<?, ?>) parameters).getTop();
+        }
+        if (circuitBreakers == null) {
+            circuitBreakers = new LinkedHashMap<Map<String, String>, CircuitBreaker>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Map<String, String>, CircuitBreaker> eldest) {
+                    return size() > MAX_CIRCUIT_BREAKERS;
+                }
+            };
+        }
+        // only the values, not objects such as the job, which are the same for every call of the script
+        final Map<String, String> values = new HashMap<String, String>();
+        for (Entry<?, ?> parameter : parameters.entrySet()) {
+            if (parameter.getValue() instanceof String) {
+                values.put(String.valueOf(parameter.getKey()), (String) parameter.getValue());
+            }
+        }
+        CircuitBreaker breaker = circuitBreakers.get(values);
+        if (breaker == null) {
+            breaker = new CircuitBreaker();
+            circuitBreakers.put(values, breaker);
         }
+        return breaker;
     }
 
     /*
@@ -220,6 +597,7 @@ public class GroovyScript extends AbstractScript {
         int result = 1;
         result = prime * result + ((secureFallbackScript == null) ? 0 : secureFallbackScript.hashCode());
         result = prime * result + ((secureScript == null) ? 0 : secureScript.hashCode());
+        result = prime * result + (staticCompilation ? 1231 : 1237);
         return result;
     }
 
@@ -247,6 +625,8 @@ public class GroovyScript extends AbstractScript {
                 return false;
         } else if (!secureScript.equals(other.secureScript))
             return false;
+        if (staticCompilation != other.staticCompilation)
+            return false;
         return true;
     }
 
@@ -254,6 +634,12 @@ public class GroovyScript extends AbstractScript {
 
     @Extension
     public static class DescriptorImpl extends ScriptDescriptor {
+
+        /**
+         * Number of methods shown in the profile, the slowest first.
+         */
+        private static final int PROFILE_METHODS = 20;
+
         /*
          * (non-Javadoc)
          *
@@ -263,6 +649,64 @@ public class GroovyScript extends AbstractScript {
         public String getDisplayName() {
             return "Groovy Script";
         }
+
+        /**
+         * Evaluates the script once, without parameters, and shows where its time went.
+         *
+         * @param item the job being configured
+         * @param script script
+         * @param sandbox whether the script runs in the sandbox
+         * @return the profile of the script
+         * @since 2.2
+         */
+        @RequirePOST
+        public FormValidation doProfile(@AncestorInPath Item item, @QueryParameter String script,
+                @QueryParameter boolean sandbox) {
+            if (item == null) {
+                Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+            } else {
+                item.checkPermission(Item.CONFIGURE);
+            }
+            final String text = Util.fixNull(script);
+            if (!sandbox) {
+                // profiling must never approve a script, so unapproved scripts are rejected before it is configured,
+                // which is then a no-op for the approvals
+                try {
+                    ScriptApproval.get().using(text, GroovyLanguage.get());
+                } catch (UnapprovedUsageException e) {
+                    return FormValidation.error("Script not yet approved, approve it or run it in the sandbox to "
+                            + "profile it");
+                }
+            }
+            final SecureGroovyScript secureScript = new SecureGroovyScript(text, sandbox, null)
+                    .configuringWithNonKeyItem();
+            final ScriptProfiler profiler;
+            try {
+                profiler = new GroovyScript(secureScript, null).profile(Collections.<String, String>emptyMap());
+            } catch (Exception e) {
+                return FormValidation.error(e, "Script failed");
+            }
+            final StringBuilder html = new StringBuilder();
+            html.append(String.format("<p>Wall time: %.2f ms, CPU time: %.2f ms, sandbox interceptions: %d</p>",
+                    profiler.getWallNanos() / 1e6, profiler.getCpuNanos() / 1e6, profiler.getInterceptions()));
+            if (!sandbox) {
+                html.append("<p>Scripts outside the sandbox are not intercepted, only the total time is measured.</p>");
+            }
+            final List<ScriptProfiler.Stats> methods = profiler.getMethods();
+            if (!methods.isEmpty()) {
+                html.append("<table class='pane'><tr><th class='pane-header'>Method</th>"
+                        + "<th class='pane-header'>Calls</th><th class='pane-header'>Wall (ms)</th>"
+                        + "<th class='pane-header'>CPU (ms)</th></tr>");
+                for (ScriptProfiler.Stats stats : methods.subList(0, Math.min(PROFILE_METHODS, methods.size()))) {
+                    html.append(String.format("<tr><td class='pane'>%s</td><td class='pane'>%d</td>"
+                            + "<td class='pane'>%.2f</td><td class='pane'>%.2f</td></tr>",
+                            Util.escape(stats.getName()), stats.getCalls(), stats.getWallNanos() / 1e6,
+                            stats.getCpuNanos() / 1e6));
+                }
+                html.append("</table>");
+            }
+            return FormValidation.okWithMarkup(html.toString());
+        }
     }
 
 }
@@ -0,0 +1,595 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice.util;
+
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang.ObjectUtils;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * <p>An immutable and ordered list of choices, with a read-only {@link Map} view, where each choice has a key
+ * and a label that can be read by position.</p>
+ *
+ * <p>There are two kinds of choice lists. Compact choice lists keep keys and labels in two arrays, instead of an
+ * entry object per choice, and when every label is the same as its key, as for scripts that return lists, a
+ * single array is kept. Strings are interned, so repeated keys and labels, within and across parameters, are
+ * stored only once. They are used for results that are kept, such as cached results.</p>
+ *
+ * <p>List views wrap the list returned by a script without copying it. Each element is both the key and the
+ * label of a choice. As in a {@link java.util.LinkedHashMap}, a duplicated element is a single choice, at the
+ * position of its first occurrence; only the positions of the distinct elements are kept, and only when the list
+ * has duplicates.</p>
+ *
+ * <p>Lookups by key build an index the first time they are needed.</p>
+ *
+ * <p>Choice lists created by {@link #truncate(Map, int, long)} are marked as truncated, so that the UI can warn
+ * that some choices are missing.</p>
+ *
+ * @since 2.2
+ */
+public abstract class ChoiceList extends AbstractMap<Object, Object> implements Serializable {
+
+    /*
+     * Serial UID.
+     */
+    private static final long serialVersionUID = -2503296532185046393L;
+
+    /**
+     * Number of choices up to which lookups by key scan the keys, instead of building an index.
+     */
+    private static final int INDEX_THRESHOLD = 16;
+
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
+    private static final Object[] NONE = new Object[0];
+
+    private boolean truncated = false;
+
+    private transient volatile Map<Object, Integer> index;
+
+    private transient Set<Entry<Object, Object>> entrySet;
+
+    ChoiceList() {}
+
+    /**
+     * Creates a compact choice list with the entries of a map, in the same order.
+     *
+     * @param choices choices, with the key and the label of each choice
+     * @return choice list, or the same object if it is a compact choice list already
+     */
+    public static @Nonnull ChoiceList copyOf(@Nonnull Map<?, ?> choices) {
+        if (choices instanceof Packed) {
+            return (ChoiceList) choices;
+        }
+        Object[] keys = new Object[choices.size()];
+        Object[] labels = new Object[keys.length];
+        boolean sameLabels = true;
+        int size = 0;
+        for (Entry<?, ?> entry : choices.entrySet()) {
+            if (size == keys.length) {
+                // the map grew while we were copying it
+                keys = Arrays.copyOf(keys, size * 2 + 1);
+                labels = Arrays.copyOf(labels, keys.length);
+            }
+            keys[size] = intern(entry.getKey());
+            labels[size] = intern(entry.getValue());
+            sameLabels &= keys[size] == labels[size];
+            size++;
+        }
+        return create(keys, sameLabels ? null : labels, size);
+    }
+
+    /**
+     * Creates a choice list backed by a list, without copying it. Each distinct element is both the key and the
+     * label of a choice. Duplicates are only looked for once the choices are read. The list must not be changed
+     * afterwards.
+     *
+     * @param choices choices
+     * @return choice list
+     */
+    public static @Nonnull ChoiceList view(@Nonnull List<?> choices) {
+        return new ListView(choices);
+    }
+
+    /**
+     * Creates a read-only view of a map, without copying it.
+     *
+     * @param choices choices, with the key and the label of each choice
+     * @return read-only map, or the same object if it is a choice list already
+     */
+    public static @Nonnull Map<Object, Object> view(@Nonnull Map<?, ?> choices) {
+        if (choices instanceof ChoiceList) {
+            return (ChoiceList) choices;
+        }
+        return Collections.<Object, Object>unmodifiableMap(choices);
+    }
+
+    /**
+     * Replaces a map result with a compact choice list, so that it takes less memory while it is kept. Other
+     * results are returned as they are.
+     *
+     * @param result script result
+     * @return compact result
+     */
+    public static @Nullable Object compact(@Nullable Object result) {
+        if (result instanceof Map) {
+            return copyOf((Map<?, ?>) result);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the first choices of a map that fit in a number of choices, and in a size, measured as the number of
+     * characters of the JSON sent to the UI. Only the choices that fit are read.
+     *
+     * @param choices choices, with the key and the label of each choice
+     * @param maxChoices maximum number of choices
+     * @param maxSize maximum size
+     * @return the choices that fit, marked as truncated, or {@code null} if every choice fits
+     */
+    public static @CheckForNull ChoiceList truncate(@Nonnull Map<?, ?> choices, int maxChoices, long maxSize) {
+        int fit = 0;
+        long size = 0;
+        for (Entry<?, ?> entry : choices.entrySet()) {
+            size += sizeOf(entry.getKey()) + sizeOf(entry.getValue());
+            if (fit == maxChoices || size > maxSize) {
+                break;
+            }
+            fit++;
+        }
+        if (fit == choices.size()) {
+            return null;
+        }
+        final Object[] keys = new Object[fit];
+        final Object[] labels = new Object[fit];
+        int i = 0;
+        for (Iterator<? extends Entry<?, ?>> it = choices.entrySet().iterator(); i < fit && it.hasNext(); i++) {
+            final Entry<?, ?> entry = it.next();
+            keys[i] = intern(entry.getKey());
+            labels[i] = intern(entry.getValue());
+        }
+        final ChoiceList truncated = create(keys, labels, i);
+        truncated.truncated = true;
+        return truncated;
+    }
+
+    /**
+     * Gets the first elements of a list that fit in a number of choices, and in a size, measured as the number
+     * of characters of the JSON sent to the UI, where each element is both the key and the label of a choice.
+     * The list is measured as it is, so duplicates count too. Only the elements that fit are read.
+     *
+     * @param choices choices
+     * @param maxChoices maximum number of choices
+     * @param maxSize maximum size
+     * @return a view of a copy of the elements that fit, marked as truncated, or {@code null} if every element
+     * fits
+     */
+    public static @CheckForNull ChoiceList truncate(@Nonnull List<?> choices, int maxChoices, long maxSize) {
+        int fit = 0;
+        long size = 0;
+        for (Object choice : choices) {
+            size += 2 * sizeOf(choice);
+            if (fit == maxChoices || size > maxSize) {
+                break;
+            }
+            fit++;
+        }
+        if (fit == choices.size()) {
+            return null;
+        }
+        // copied, so that the rest of the list can be garbage collected
+        final ChoiceList truncated = new ListView(new ArrayList<Object>(choices.subList(0, fit)));
+        truncated.truncated = true;
+        return truncated;
+    }
+
+    /**
+     * Size of a key or label in the JSON sent to the UI, with its quotes and separator.
+     */
+    private static int sizeOf(Object o) {
+        return String.valueOf(o).length() + 3;
+    }
+
+    private static ChoiceList create(Object[] keys, Object[] labels, int size) {
+        if (size == 0) {
+            return new Packed(NONE, NONE);
+        }
+        if (size < keys.length) {
+            keys = Arrays.copyOf(keys, size);
+            if (labels != null) {
+                labels = Arrays.copyOf(labels, size);
+            }
+        }
+        return new Packed(keys, labels == null ? keys : labels);
+    }
+
+    private static Object intern(Object o) {
+        if (o instanceof String) {
+            return STRINGS.intern((String) o);
+        }
+        return o;
+    }
+
+    /**
+     * @return {@code true} if choices can be read by position in constant time
+     */
+    boolean isRandomAccess() {
+        return true;
+    }
+
+    /**
+     * @return {@code true} if this choice list has only the first choices of a result that was too large
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Gets the key of a choice.
+     *
+     * @param i choice position
+     * @return choice key
+     */
+    public abstract Object getKey(int i);
+
+    /**
+     * Gets the label of a choice.
+     *
+     * @param i choice position
+     * @return choice label
+     */
+    public abstract Object getLabel(int i);
+
+    /**
+     * Gets the position of a choice.
+     *
+     * @param key choice key
+     * @return position of the choice with this key, or -1 if there is no choice with this key
+     */
+    public int indexOf(Object key) {
+        final int size = size();
+        if (size <= INDEX_THRESHOLD) {
+            for (int i = 0; i < size; i++) {
+                if (ObjectUtils.equals(getKey(i), key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        Map<Object, Integer> index = this.index;
+        if (index == null) {
+            index = new HashMap<Object, Integer>(size * 2);
+            int i = 0;
+            for (Entry<Object, Object> entry : entrySet()) {
+                index.put(entry.getKey(), i++);
+            }
+            this.index = index;
+        }
+        final Integer i = index.get(key);
+        return i == null ? -1 : i;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        final int i = indexOf(key);
+        return i >= 0 ? getLabel(i) : null;
+    }
+
+    @Override
+    public Collection<Object> values() {
+        return new AbstractList<Object>() {
+            @Override
+            public Object get(int i) {
+                return getLabel(i);
+            }
+
+            @Override
+            public int size() {
+                return ChoiceList.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<Object, Object>> entrySet() {
+        Set<Entry<Object, Object>> entries = entrySet;
+        if (entries == null) {
+            entries = entrySet = new AbstractSet<Entry<Object, Object>>() {
+                @Override
+                public Iterator<Entry<Object, Object>> iterator() {
+                    return new Iterator<Entry<Object, Object>>() {
+                        private int next = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < size();
+                        }
+
+                        @Override
+                        public Entry<Object, Object> next() {
+                            if (next >= size()) {
+                                throw new NoSuchElementException();
+                            }
+                            final int i = next++;
+                            return new SimpleImmutableEntry<Object, Object>(getKey(i), getLabel(i));
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return ChoiceList.this.size();
+                }
+            };
+        }
+        return entries;
+    }
+
+    /**
+     * Choices in two arrays, or in a single one when every label is its key.
+     */
+    private static final class Packed extends ChoiceList {
+
+        private static final long serialVersionUID = 4086431281236395946L;
+
+        private final Object[] keys;
+
+        private final Object[] labels;
+
+        Packed(Object[] keys, Object[] labels) {
+            this.keys = keys;
+            this.labels = labels;
+        }
+
+        @Override
+        public int size() {
+            return keys.length;
+        }
+
+        @Override
+        public Object getKey(int i) {
+            return keys[i];
+        }
+
+        @Override
+        public Object getLabel(int i) {
+            return labels[i];
+        }
+
+        private Object readResolve() {
+            // keep the strings interned, and a single array when the labels are the keys
+            final boolean sameLabels = keys == labels;
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = intern(keys[i]);
+                if (!sameLabels) {
+                    labels[i] = intern(labels[i]);
+                }
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Choices backed by a list, where each distinct element is both the key and the label.
+     */
+    private static final class ListView extends ChoiceList {
+
+        private static final long serialVersionUID = -7424795532164722383L;
+
+        private static final int[] ALL = new int[0];
+
+        // List is not serializable, but the lists returned by scripts usually are. Ignore static analysis errors
+        private final List<?> choices;
+
+        /**
+         * Positions of the first occurrence of each element, {@link #ALL} if the list has no duplicates, or
+         * {@code null} until the list is first read, see {@link #getPositions()}.
+         */
+        private transient volatile int[] positions;
+
+        ListView(List<?> choices) {
+            this.choices = choices;
+        }
+
+        /**
+         * Gets the positions of the first occurrence of each element, looking for duplicates the first time.
+         *
+         * @return positions, or {@code null} if the list has no duplicates
+         */
+        private int[] getPositions() {
+            int[] positions = this.positions;
+            if (positions == null) {
+                // at worst computed once by each thread reading the list at the same time, with the same result
+                positions = findPositions(choices);
+                this.positions = positions;
+            }
+            return positions == ALL ? null : positions;
+        }
+
+        private static int[] findPositions(List<?> choices) {
+            final Set<Object> seen = new HashSet<Object>(choices.size() * 2);
+            int[] positions = null;
+            int size = 0;
+            int i = 0;
+            for (Object choice : choices) {
+                if (seen.add(choice)) {
+                    if (positions != null) {
+                        positions[size] = i;
+                    }
+                    size++;
+                } else if (positions == null) {
+                    // the first duplicate, every position so far is kept
+                    positions = new int[choices.size() - 1];
+                    for (int j = 0; j < size; j++) {
+                        positions[j] = j;
+                    }
+                }
+                i++;
+            }
+            return positions == null ? ALL : Arrays.copyOf(positions, size);
+        }
+
+        @Override
+        public int size() {
+            final int[] positions = getPositions();
+            return positions == null ? choices.size() : positions.length;
+        }
+
+        @Override
+        public Object getKey(int i) {
+            final int[] positions = getPositions();
+            return choices.get(positions == null ? i : positions[i]);
+        }
+
+        @Override
+        public Object getLabel(int i) {
+            return getKey(i);
+        }
+
+        @Override
+        boolean isRandomAccess() {
+            return choices instanceof RandomAccess;
+        }
+
+        @Override
+        public Collection<Object> values() {
+            if (isRandomAccess()) {
+                return super.values();
+            }
+            return new AbstractCollection<Object>() {
+                @Override
+                public Iterator<Object> iterator() {
+                    final Iterator<Entry<Object, Object>> entries = entrySet().iterator();
+                    return new Iterator<Object>() {
+                        @Override
+                        public boolean hasNext() {
+                            return entries.hasNext();
+                        }
+
+                        @Override
+                        public Object next() {
+                            return entries.next().getValue();
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return ListView.this.size();
+                }
+            };
+        }
+
+        @Override
+        public Set<Entry<Object, Object>> entrySet() {
+            if (isRandomAccess()) {
+                return super.entrySet();
+            }
+            // walks the list once, as reading a linked list by position would walk it for every choice
+            return new AbstractSet<Entry<Object, Object>>() {
+                @Override
+                public Iterator<Entry<Object, Object>> iterator() {
+                    final int[] positions = getPositions();
+                    final Iterator<?> elements = choices.iterator();
+                    return new Iterator<Entry<Object, Object>>() {
+                        private int next = 0;
+
+                        private int position = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < size();
+                        }
+
+                        @Override
+                        public Entry<Object, Object> next() {
+                            if (next >= size()) {
+                                throw new NoSuchElementException();
+                            }
+                            final int target = positions == null ? next : positions[next];
+                            Object choice = elements.next();
+                            for (; position < target; position++) {
+                                choice = elements.next();
+                            }
+                            position++;
+                            next++;
+                            return new SimpleImmutableEntry<Object, Object>(choice, choice);
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return ListView.this.size();
+                }
+            };
+        }
+    }
+
+}
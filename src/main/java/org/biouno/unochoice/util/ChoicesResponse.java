@@ -0,0 +1,188 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.biouno.unochoice.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.annotation.Nonnull;
+import javax.servlet.ServletException;
+
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * <p>Streams the choices of a parameter to the UI in a compact JSON form.</p>
+ *
+ * <pre>{"c":["key0","label0","key1","label1",...],"s":[5],"t":1}</pre>
+ *
+ * <p><code>c</code> is a single array with the key and label of each choice, with the <code>:selected</code>
+ * suffix already removed. <code>s</code> is a bitmap of the selected choices, where the bit <code>i % 32</code> of
+ * the word <code>i / 32</code> is set when the choice <code>i</code> is selected. <code>t</code> is only there
+ * when the choices were truncated, as the result was too large. Large responses are gzip'ed if the browser
+ * accepts it.</p>
+ *
+ * <p>The JSON is written straight to the response, entry by entry, without building intermediate collections or
+ * going through the JSON bean mapper.</p>
+ *
+ * @since 2.2
+ */
+public class ChoicesResponse extends HttpResponses.HttpResponseException {
+
+    /*
+     * Serial UID.
+     */
+    private static final long serialVersionUID = 6361447734339302871L;
+
+    /**
+     * Number of choices from which the response is compressed.
+     */
+    public static final int GZIP_THRESHOLD = Integer.getInteger(ChoicesResponse.class.getName() + ".gzipThreshold",
+            500);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Map is not serializable, but LinkedHashMap is. Ignore static analysis errors
+    private final Map<?, ?> choices;
+
+    /**
+     * Create a new response.
+     *
+     * @param choices parameter choices, as returned by the script
+     */
+    public ChoicesResponse(@Nonnull Map<?, ?> choices) {
+        this.choices = choices;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.kohsuke.stapler.HttpResponse#generateResponse(org.kohsuke.stapler.StaplerRequest, org.kohsuke.stapler.StaplerResponse, java.lang.Object)
+     */
+    @Override
+    public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node)
+            throws IOException, ServletException {
+        rsp.setContentType("application/json;charset=UTF-8");
+        final Writer writer = choices.size() >= GZIP_THRESHOLD ? rsp.getCompressedWriter(req) : rsp.getWriter();
+        try {
+            write(choices, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the compact JSON of the given choices.
+     *
+     * @param choices parameter choices
+     * @param writer where the JSON is written to
+     * @throws IOException if it fails to write
+     */
+    public static void write(@Nonnull Map<?, ?> choices, @Nonnull Writer writer) throws IOException {
+        final int[] selected = new int[(choices.size() + 31) / 32];
+        writer.write("{\"c\":[");
+        if (choices instanceof ChoiceList && ((ChoiceList) choices).isRandomAccess()) {
+            // read by position, without creating an entry per choice
+            final ChoiceList choiceList = (ChoiceList) choices;
+            for (int index = 0; index < choiceList.size(); index++) {
+                writeChoice(index, choiceList.getKey(index), choiceList.getLabel(index), selected, writer);
+            }
+        } else {
+            int index = 0;
+            for (Entry<?, ?> entry : choices.entrySet()) {
+                writeChoice(index++, entry.getKey(), entry.getValue(), selected, writer);
+            }
+        }
+        writer.write("],\"s\":[");
+        for (int i = 0; i < selected.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            // unsigned, so that the browser can read the 32 bits of each word
+            writer.write(Long.toString(selected[i] & 0xffffffffL));
+        }
+        writer.write(']');
+        if (choices instanceof ChoiceList && ((ChoiceList) choices).isTruncated()) {
+            writer.write(",\"t\":1");
+        }
+        writer.write('}');
+    }
+
+    private static void writeChoice(int index, Object key, Object label, int[] selected, Writer writer)
+            throws IOException {
+        if (index > 0) {
+            writer.write(',');
+        }
+        writeString(Utils.escapeSelected(key), writer);
+        writer.write(',');
+        writeString(Utils.escapeSelected(label), writer);
+        if (Utils.isSelected(label)) {
+            selected[index >>> 5] |= 1 << (index & 31);
+        }
+    }
+
+    /**
+     * Writes a JSON string. Besides the characters that must be escaped in JSON, HTML markup characters and
+     * line separators are escaped too, so that the payload is also safe to embed in a page.
+     */
+    private static void writeString(String text, Writer writer) throws IOException {
+        writer.write('"');
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+            case '"':
+                writer.write("\\\"");
+                break;
+            case '\\':
+                writer.write("\\\\");
+                break;
+            case '\n':
+                writer.write("\\n");
+                break;
+            case '\r':
+                writer.write("\\r");
+                break;
+            case '\t':
+                writer.write("\\t");
+                break;
+            default:
+                if (c < 0x20 || c == '<' || c == '>' || c == '&' || c == '\u2028' || c == '\u2029') {
+                    writer.write("\\u");
+                    writer.write(HEX[(c >> 12) & 0xf]);
+                    writer.write(HEX[(c >> 8) & 0xf]);
+                    writer.write(HEX[(c >> 4) & 0xf]);
+                    writer.write(HEX[c & 0xf]);
+                } else {
+                    writer.write(c);
+                }
+            }
+        }
+        writer.write('"');
+    }
+
+}
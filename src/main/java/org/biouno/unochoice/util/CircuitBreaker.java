@@ -0,0 +1,128 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.biouno.unochoice.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A circuit breaker for scripts that call external systems. After a number of consecutive failures the
+ * circuit opens, and the script is not called for a cool-down period. Then a single call is let through to
+ * probe it: if it succeeds the circuit closes, otherwise it opens again for another cool-down period.</p>
+ *
+ * @since 2.2
+ */
+public class CircuitBreaker {
+
+    /**
+     * Default number of consecutive failures that open the circuit.
+     */
+    public static final int FAILURE_THRESHOLD = Integer.getInteger(CircuitBreaker.class.getName() + ".failureThreshold",
+            5);
+
+    /**
+     * Default cool-down period, in milliseconds.
+     */
+    public static final int COOL_DOWN = Integer.getInteger(CircuitBreaker.class.getName() + ".coolDown", 30000);
+
+    private final int failureThreshold;
+    private final long coolDownNanos;
+
+    private int failures = 0;
+    private boolean open = false;
+    private boolean probing = false;
+    private long openedAt;
+
+    /**
+     * Create a new circuit breaker, with the default failure threshold and cool-down period.
+     */
+    public CircuitBreaker() {
+        this(FAILURE_THRESHOLD, COOL_DOWN, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a new circuit breaker.
+     *
+     * @param failureThreshold number of consecutive failures that open the circuit
+     * @param coolDown cool-down period
+     * @param unit time unit of the cool-down period
+     */
+    public CircuitBreaker(int failureThreshold, long coolDown, TimeUnit unit) {
+        this.failureThreshold = failureThreshold;
+        this.coolDownNanos = unit.toNanos(coolDown);
+    }
+
+    /**
+     * Checks whether a call can be made. When the circuit is open and the cool-down period has elapsed, only
+     * the first caller is allowed, to probe the script.
+     *
+     * @return <code>true</code> if the call can be made
+     */
+    public synchronized boolean allowRequest() {
+        if (!open)
+            return true;
+        if (!probing && System.nanoTime() - openedAt >= coolDownNanos) {
+            probing = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a successful call, closing the circuit.
+     */
+    public synchronized void recordSuccess() {
+        failures = 0;
+        open = false;
+        probing = false;
+    }
+
+    /**
+     * Records a failed call. Opens the circuit if the threshold was reached, or if it was a probe.
+     */
+    public synchronized void recordFailure() {
+        failures++;
+        if (probing || failures >= failureThreshold) {
+            open = true;
+            probing = false;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Records a call that failed for reasons that are not counted as failures (e.g. the script is not approved
+     * yet). If it was a probe, the next call probes again.
+     */
+    public synchronized void recordIgnoredFailure() {
+        probing = false;
+    }
+
+    /**
+     * @return <code>true</code> if the circuit is open
+     */
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+}
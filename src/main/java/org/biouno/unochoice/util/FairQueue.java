@@ -0,0 +1,167 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+ * <p>Limits the number of calls running at the same time. When all the permits are in use, calls wait in a queue
+ * per user, and the permits released are handed to the users in turns, so that a user with many calls waiting
+ * does not delay the calls of the other users.</p>
+ *
+ * @since 2.2
+ */
+public class FairQueue {
+
+    private final int permits;
+
+    private int active = 0;
+
+    /**
+     * Waiting calls by user, in the order in which the users get their next turn.
+     */
+    private final Map<String, Deque<Waiter>> waiting = new LinkedHashMap<String, Deque<Waiter>>();
+
+    /**
+     * Create a new queue.
+     *
+     * @param permits number of calls allowed to run at the same time
+     */
+    public FairQueue(int permits) {
+        this.permits = Math.max(1, permits);
+    }
+
+    /**
+     * Acquires a permit, waiting for the turn of the user if all the permits are in use. Each permit acquired must
+     * be given back with {@link #release()}.
+     *
+     * @param user user
+     * @param timeout how long to wait for a permit
+     * @param unit time unit of the timeout
+     * @return {@code true} if a permit was acquired, {@code false} if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean acquire(@Nonnull String user, long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        final Waiter waiter;
+        synchronized (this) {
+            if (active < permits && waiting.isEmpty()) {
+                active++;
+                return true;
+            }
+            Deque<Waiter> queue = waiting.get(user);
+            if (queue == null) {
+                queue = new ArrayDeque<Waiter>();
+                waiting.put(user, queue);
+            }
+            waiter = new Waiter(user);
+            queue.add(waiter);
+        }
+        boolean interrupted = false;
+        try {
+            if (waiter.latch.await(timeout, unit)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        synchronized (this) {
+            if (waiter.latch.getCount() == 0) {
+                // granted in the meantime
+                if (interrupted) {
+                    release();
+                    throw new InterruptedException();
+                }
+                return true;
+            }
+            final Deque<Waiter> queue = waiting.get(user);
+            if (queue != null) {
+                queue.remove(waiter);
+                if (queue.isEmpty()) {
+                    waiting.remove(user);
+                }
+            }
+        }
+        if (interrupted) {
+            throw new InterruptedException();
+        }
+        return false;
+    }
+
+    /**
+     * Gives back a permit. If there are calls waiting, the permit goes to the first call of the next user.
+     */
+    public synchronized void release() {
+        final Iterator<Map.Entry<String, Deque<Waiter>>> it = waiting.entrySet().iterator();
+        if (!it.hasNext()) {
+            active--;
+            return;
+        }
+        final Deque<Waiter> queue = it.next().getValue();
+        it.remove();
+        final Waiter waiter = queue.poll();
+        if (!queue.isEmpty()) {
+            // back to the end of the line
+            waiting.put(waiter.user, queue);
+        }
+        waiter.latch.countDown();
+    }
+
+    /**
+     * @return number of permits in use
+     */
+    public synchronized int getActive() {
+        return active;
+    }
+
+    /**
+     * @return number of calls waiting for a permit
+     */
+    public synchronized int getWaiting() {
+        int count = 0;
+        for (Deque<Waiter> queue : waiting.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    private static final class Waiter {
+        private final String user;
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        Waiter(String user) {
+            this.user = user;
+        }
+    }
+
+}
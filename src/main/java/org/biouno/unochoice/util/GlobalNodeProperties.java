@@ -0,0 +1,120 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+import hudson.util.DescribableList;
+import jenkins.model.Jenkins;
+
+/**
+ * <p>An immutable snapshot of the environment variables defined in the global node properties.</p>
+ *
+ * <p>The snapshot is shared, read-only, by every script evaluation, and is rebuilt only when the global
+ * configuration is saved. Adding or removing a global node property saves the configuration too.</p>
+ *
+ * @since 2.2
+ */
+public final class GlobalNodeProperties {
+
+    private static volatile Snapshot snapshot = null;
+
+    private GlobalNodeProperties() {}
+
+    /**
+     * Gets the current snapshot, building it if it was invalidated.
+     *
+     * @return unmodifiable map with the global node properties
+     */
+    public static @Nonnull Map<String, Object> get() {
+        final DescribableList<NodeProperty<?>, NodePropertyDescriptor> globalNodeProperties = Jenkins.getInstance()
+                .getGlobalNodeProperties();
+        Snapshot current = snapshot;
+        // a snapshot is only valid for the Jenkins instance it was built from, e.g. after a restart in tests
+        if (current == null || current.source.get() != globalNodeProperties) {
+            current = new Snapshot(globalNodeProperties);
+            snapshot = current;
+        }
+        return current.properties;
+    }
+
+    /**
+     * Discards the current snapshot. The next call to {@link #get()} builds a new one.
+     */
+    public static void invalidate() {
+        snapshot = null;
+    }
+
+    /**
+     * Environment variables of the global node properties, and where they were read from.
+     */
+    private static final class Snapshot {
+        private final WeakReference<DescribableList<NodeProperty<?>, NodePropertyDescriptor>> source;
+        private final Map<String, Object> properties;
+
+        Snapshot(@CheckForNull DescribableList<NodeProperty<?>, NodePropertyDescriptor> globalNodeProperties) {
+            this.source = new WeakReference<DescribableList<NodeProperty<?>, NodePropertyDescriptor>>(
+                    globalNodeProperties);
+            final Map<String, Object> map = new HashMap<String, Object>();
+            if (globalNodeProperties != null) {
+                for (NodeProperty<?> nodeProperty : globalNodeProperties) {
+                    if (nodeProperty instanceof EnvironmentVariablesNodeProperty) {
+                        EnvironmentVariablesNodeProperty envNodeProperty = (EnvironmentVariablesNodeProperty) nodeProperty;
+                        map.putAll(envNodeProperty.getEnvVars());
+                    }
+                }
+            }
+            this.properties = Collections.unmodifiableMap(map);
+        }
+    }
+
+    /**
+     * Invalidates the snapshot when the global configuration is saved.
+     */
+    @Extension
+    public static final class Listener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Jenkins) {
+                invalidate();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,377 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.biouno.unochoice.AbstractScriptableParameter;
+import org.biouno.unochoice.model.GroovyScript;
+import org.biouno.unochoice.model.Script;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Items;
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+/**
+ * <p>An index of the jobs that define Active Choices parameters, by parameter UUID.</p>
+ *
+ * <p>The index is built the first time it is used, by iterating through all the jobs once, and is then kept up
+ * to date by listening to jobs being created, saved, moved and deleted. Any type of {@link Job} is indexed,
+ * including Pipeline and multibranch branch jobs.</p>
+ *
+ * <p>It also keeps the upstream jobs of the parameters of each job, so that the jobs that depend on the builds of
+ * a job are found without loading every job, and the compiled classes of the Groovy scripts of each job, so that
+ * they are disposed of from the {@link ScriptClassCache} when no job uses them anymore, e.g. once the script is
+ * reconfigured.</p>
+ *
+ * @since 2.2
+ */
+public final class JobIndex {
+
+    private static final Object LOCK = new Object();
+
+    /**
+     * Job full name, by parameter UUID. Read without locking. When several jobs have the same parameter UUID,
+     * as a copied job does, the job that had it first keeps it.
+     */
+    private static final ConcurrentMap<String, String> JOBS = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Parameter UUIDs, by job full name. Guarded by {@link #LOCK}.
+     */
+    private static final Map<String, Set<String>> PARAMETERS = new HashMap<String, Set<String>>();
+
+    /**
+     * Upstream job full names, by job full name, for the jobs whose parameters have upstream jobs. Guarded by
+     * {@link #LOCK}.
+     */
+    private static final Map<String, Set<String>> UPSTREAM_JOBS = new HashMap<String, Set<String>>();
+
+    /**
+     * Keys of the compiled classes of the Groovy scripts, by job full name, see
+     * {@link GroovyScript#getClassKeys()}. Guarded by {@link #LOCK}.
+     */
+    private static final Map<String, Set<Object>> SCRIPT_CLASSES = new HashMap<String, Set<Object>>();
+
+    private static volatile boolean built = false;
+
+    private JobIndex() {}
+
+    /**
+     * Find the job of a parameter given its UUID.
+     *
+     * @param parameterUUID parameter UUID
+     * @return {@code null} if the job cannot be found, or if the user cannot read it
+     */
+    public static @CheckForNull Job<?, ?> findByParameterUUID(@Nonnull String parameterUUID) {
+        build();
+        final String fullName = JOBS.get(parameterUUID);
+        if (fullName == null) {
+            return null;
+        }
+        final Job<?, ?> job = Utils.getJobByFullName(fullName);
+        // in case an event was missed, never return a job that does not have this parameter
+        if (job == null || !Utils.getParameterUUIDs(job).contains(parameterUUID)) {
+            return null;
+        }
+        return job;
+    }
+
+    /**
+     * Gets the full names of the jobs that define Active Choices parameters.
+     *
+     * @return job full names
+     */
+    public static @Nonnull Set<String> getJobNames() {
+        build();
+        synchronized (LOCK) {
+            return new HashSet<String>(PARAMETERS.keySet());
+        }
+    }
+
+    /**
+     * Gets the full names of the jobs whose Active Choices parameters depend on the builds of a job: the job
+     * itself, if it defines Active Choices parameters, and the jobs with parameters that list it as an upstream
+     * job. Only the index is read, no job is loaded.
+     *
+     * @param fullName job full name
+     * @return job full names
+     * @see AbstractScriptableParameter#getUpstreamJobNames(Job)
+     */
+    public static @Nonnull Set<String> getDependentJobNames(@Nonnull String fullName) {
+        build();
+        synchronized (LOCK) {
+            final Set<String> names = new HashSet<String>();
+            if (PARAMETERS.containsKey(fullName)) {
+                names.add(fullName);
+            }
+            for (Map.Entry<String, Set<String>> entry : UPSTREAM_JOBS.entrySet()) {
+                if (entry.getValue().contains(fullName)) {
+                    names.add(entry.getKey());
+                }
+            }
+            return names;
+        }
+    }
+
+    /**
+     * Discards the index. The next lookup builds it again.
+     */
+    public static void invalidate() {
+        synchronized (LOCK) {
+            JOBS.clear();
+            PARAMETERS.clear();
+            UPSTREAM_JOBS.clear();
+            SCRIPT_CLASSES.clear();
+            built = false;
+        }
+    }
+
+    /**
+     * Builds the index, if it was not built yet.
+     */
+    private static void build() {
+        if (built) {
+            return;
+        }
+        synchronized (LOCK) {
+            if (built) {
+                return;
+            }
+            for (Job<?, ?> job : Items.allItems(ACL.SYSTEM, Jenkins.getInstance(), Job.class)) {
+                add(job);
+            }
+            built = true;
+        }
+    }
+
+    /**
+     * Updates the entries of a job, if the index was built already. The job keeps the UUIDs it already had.
+     */
+    private static void update(@Nonnull Job<?, ?> job) {
+        synchronized (LOCK) {
+            if (built) {
+                final String fullName = job.getFullName();
+                final Set<String> previous = PARAMETERS.get(fullName);
+                if (previous != null) {
+                    final Set<String> removed = new HashSet<String>(previous);
+                    removed.removeAll(Utils.getParameterUUIDs(job));
+                    previous.removeAll(removed);
+                    release(fullName, removed);
+                }
+                final Set<Object> previousClasses = SCRIPT_CLASSES.get(fullName);
+                add(job);
+                if (previousClasses != null) {
+                    disposeUnusedClasses(previousClasses);
+                }
+            }
+        }
+    }
+
+    private static void add(@Nonnull Job<?, ?> job) {
+        final String fullName = job.getFullName();
+        final Set<String> uuids = Utils.getParameterUUIDs(job);
+        if (!uuids.isEmpty()) {
+            PARAMETERS.put(fullName, uuids);
+            for (String uuid : uuids) {
+                // a copy must not take over the parameters of the original job
+                JOBS.putIfAbsent(uuid, fullName);
+            }
+            final Set<String> upstreamJobs = getUpstreamJobNames(job);
+            if (!upstreamJobs.isEmpty()) {
+                UPSTREAM_JOBS.put(fullName, upstreamJobs);
+            } else {
+                UPSTREAM_JOBS.remove(fullName);
+            }
+            final Set<Object> classKeys = getClassKeys(job);
+            if (!classKeys.isEmpty()) {
+                SCRIPT_CLASSES.put(fullName, classKeys);
+            } else {
+                SCRIPT_CLASSES.remove(fullName);
+            }
+        } else {
+            PARAMETERS.remove(fullName);
+            UPSTREAM_JOBS.remove(fullName);
+            SCRIPT_CLASSES.remove(fullName);
+        }
+    }
+
+    private static Set<String> getUpstreamJobNames(@Nonnull Job<?, ?> job) {
+        final Set<String> names = new HashSet<String>();
+        for (ParameterDefinition parameterDefinition : Utils.getJobParameterDefinitions(job)) {
+            if (parameterDefinition instanceof AbstractScriptableParameter) {
+                names.addAll(((AbstractScriptableParameter) parameterDefinition).getUpstreamJobNames(job));
+            }
+        }
+        return names;
+    }
+
+    private static Set<Object> getClassKeys(@Nonnull Job<?, ?> job) {
+        final Set<Object> keys = new HashSet<Object>();
+        for (ParameterDefinition parameterDefinition : Utils.getJobParameterDefinitions(job)) {
+            if (parameterDefinition instanceof AbstractScriptableParameter) {
+                final Script script = ((AbstractScriptableParameter) parameterDefinition).getScript();
+                if (script instanceof GroovyScript) {
+                    keys.addAll(((GroovyScript) script).getClassKeys());
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Disposes of the compiled classes that no job uses anymore.
+     */
+    private static void disposeUnusedClasses(@Nonnull Set<Object> keys) {
+        final Set<Object> unused = new HashSet<Object>(keys);
+        for (Set<Object> used : SCRIPT_CLASSES.values()) {
+            unused.removeAll(used);
+        }
+        for (Object key : unused) {
+            ScriptClassCache.get().invalidate(key);
+        }
+    }
+
+    private static void remove(@Nonnull String fullName) {
+        UPSTREAM_JOBS.remove(fullName);
+        final Set<Object> classKeys = SCRIPT_CLASSES.remove(fullName);
+        if (classKeys != null) {
+            disposeUnusedClasses(classKeys);
+        }
+        final Set<String> uuids = PARAMETERS.remove(fullName);
+        if (uuids != null) {
+            release(fullName, uuids);
+        }
+    }
+
+    /**
+     * Removes the UUIDs of a job. Each UUID the job owned goes to another job that has it, if any.
+     */
+    private static void release(@Nonnull String fullName, @Nonnull Set<String> uuids) {
+        for (String uuid : uuids) {
+            if (JOBS.remove(uuid, fullName)) {
+                for (Map.Entry<String, Set<String>> entry : PARAMETERS.entrySet()) {
+                    if (entry.getValue().contains(uuid)) {
+                        JOBS.put(uuid, entry.getKey());
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a deleted item, and the jobs within it, if it is a folder.
+     */
+    private static void removeAll(@Nonnull String fullName) {
+        synchronized (LOCK) {
+            remove(fullName);
+            final String prefix = fullName + '/';
+            for (Iterator<String> it = PARAMETERS.keySet().iterator(); it.hasNext();) {
+                final String name = it.next();
+                if (name.startsWith(prefix)) {
+                    final Set<String> uuids = PARAMETERS.get(name);
+                    it.remove();
+                    UPSTREAM_JOBS.remove(name);
+                    final Set<Object> classKeys = SCRIPT_CLASSES.remove(name);
+                    if (classKeys != null) {
+                        disposeUnusedClasses(classKeys);
+                    }
+                    release(name, uuids);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the index up to date when jobs are loaded, created, copied, moved or deleted.
+     */
+    @Extension
+    public static final class JobListener extends ItemListener {
+        @Override
+        public void onLoaded() {
+            invalidate();
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            if (item instanceof Job) {
+                update((Job<?, ?>) item);
+            }
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            onCreated(item);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            removeAll(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            // called for the item and for each of its children, if it is a folder
+            removeAll(oldFullName);
+            if (item instanceof Job) {
+                update((Job<?, ?>) item);
+            }
+        }
+    }
+
+    /**
+     * Updates the index when a job is saved, which is when its parameters may have changed. This includes
+     * Pipeline jobs that define their parameters with the <code>properties</code> step.
+     */
+    @Extension
+    public static final class JobSaveListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Job) {
+                update((Job<?, ?>) o);
+            }
+        }
+    }
+
+}
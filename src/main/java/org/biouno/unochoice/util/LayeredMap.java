@@ -0,0 +1,176 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.unochoice.util;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+/**
+ * <p>A map with the entries of a map laid on top of the entries of a read-only map, without copying either.</p>
+ *
+ * <p>Changes go to the top map. The bottom map, such as the snapshot of the global node properties shared by every
+ * evaluation, is never changed, and its entries with the same keys as entries of the top map are hidden.</p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ * @since 2.2
+ */
+public final class LayeredMap<K, V> extends AbstractMap<K, V> implements Serializable {
+
+    private static final long serialVersionUID = 3046612593487210716L;
+
+    // Map is not serializable, but LinkedHashMap and unmodifiable maps are. Ignore static analysis errors
+    private final Map<K, V> top;
+    private final Map<? extends K, ? extends V> bottom;
+
+    private transient Set<Entry<K, V>> entrySet;
+
+    /**
+     * Create a new layered map.
+     *
+     * @param top map that gets the changes
+     * @param bottom read-only map, under the top map
+     */
+    public LayeredMap(@Nonnull Map<K, V> top, @Nonnull Map<? extends K, ? extends V> bottom) {
+        this.top = top;
+        this.bottom = bottom;
+    }
+
+    /**
+     * @return the top map
+     */
+    public @Nonnull Map<K, V> getTop() {
+        return top;
+    }
+
+    /**
+     * @return the read-only map, under the top map
+     */
+    public @Nonnull Map<? extends K, ? extends V> getBottom() {
+        return bottom;
+    }
+
+    @Override
+    public V get(Object key) {
+        final V value = top.get(key);
+        if (value != null || top.containsKey(key)) {
+            return value;
+        }
+        return bottom.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return top.containsKey(key) || bottom.containsKey(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        final V previous = get(key);
+        top.put(key, value);
+        return previous;
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (bottom.containsKey(key)) {
+            throw new UnsupportedOperationException("Cannot remove " + key + " from a read-only map");
+        }
+        return top.remove(key);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<K, V>>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    final Iterator<Entry<K, V>> topEntries = top.entrySet().iterator();
+                    final Iterator<? extends Entry<? extends K, ? extends V>> bottomEntries = bottom.entrySet()
+                            .iterator();
+                    return new Iterator<Entry<K, V>>() {
+                        private Entry<K, V> next;
+
+                        @Override
+                        public boolean hasNext() {
+                            if (next == null) {
+                                next = findNext();
+                            }
+                            return next != null;
+                        }
+
+                        private Entry<K, V> findNext() {
+                            if (topEntries.hasNext()) {
+                                return topEntries.next();
+                            }
+                            while (bottomEntries.hasNext()) {
+                                final Entry<? extends K, ? extends V> entry = bottomEntries.next();
+                                // hidden by the top map
+                                if (!top.containsKey(entry.getKey())) {
+                                    return new SimpleImmutableEntry<K, V>(entry.getKey(), entry.getValue());
+                                }
+                            }
+                            return null;
+                        }
+
+                        @Override
+                        public Entry<K, V> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            final Entry<K, V> entry = next;
+                            next = null;
+                            return entry;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int size = top.size();
+                    for (Object key : bottom.keySet()) {
+                        if (!top.containsKey(key)) {
+                            size++;
+                        }
+                    }
+                    return size;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+}
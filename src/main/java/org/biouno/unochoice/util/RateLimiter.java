@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice.util;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+ * <p>Limits the rate of calls by key, with a token bucket per key. Each bucket holds up to a burst of tokens,
+ * and is refilled at a constant rate. A call takes a token, and is rejected when the bucket is empty.</p>
+ *
+ * <p>With a rate of zero, or less, calls are never limited.</p>
+ *
+ * @since 2.2
+ */
+public class RateLimiter {
+
+    /**
+     * Number of buckets from which idle buckets are purged when a new bucket is added.
+     */
+    private static final int PURGE_THRESHOLD = 1000;
+
+    private final double tokensPerNano;
+    private final double burst;
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    /**
+     * Create a new rate limiter.
+     *
+     * @param rate number of calls allowed per time unit, once the burst is used
+     * @param unit time unit of the rate
+     * @param burst number of calls allowed at once
+     */
+    public RateLimiter(int rate, @Nonnull TimeUnit unit, int burst) {
+        this.tokensPerNano = rate <= 0 ? 0 : (double) rate / unit.toNanos(1);
+        this.burst = Math.max(1, burst);
+    }
+
+    /**
+     * Takes a token from the bucket of a key.
+     *
+     * @param key key, such as a user name
+     * @return {@code 0} if the call is allowed, or how long, in milliseconds, until the bucket has a token again
+     */
+    public long tryAcquire(@Nonnull String key) {
+        if (tokensPerNano <= 0) {
+            return 0;
+        }
+        final long now = System.nanoTime();
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            final Bucket created = new Bucket(burst, now);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+                purge(now);
+            }
+        }
+        synchronized (bucket) {
+            bucket.refill(now, tokensPerNano, burst);
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+                return 0;
+            }
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis((long) Math.ceil((1 - bucket.tokens) / tokensPerNano)));
+        }
+    }
+
+    /**
+     * Gets the number of buckets, including idle buckets not purged yet.
+     *
+     * @return number of buckets
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Removes the buckets that are full again, if there are too many buckets. They are the same as new buckets.
+     */
+    private void purge(long now) {
+        if (buckets.size() < PURGE_THRESHOLD)
+            return;
+        for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext();) {
+            final Bucket bucket = it.next();
+            synchronized (bucket) {
+                bucket.refill(now, tokensPerNano, burst);
+                if (bucket.tokens >= burst) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static final class Bucket {
+        private double tokens;
+        private long refilledAt;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+
+        void refill(long now, double tokensPerNano, double burst) {
+            if (now > refilledAt) {
+                tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+                refilledAt = now;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.biouno.unochoice.util;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+ * <p>A cache of results that expire after a time to live, with single-flight semantics: when several threads ask
+ * for the same key at the same time, only the first one computes the result, and the others wait for it.</p>
+ *
+ * <p>With a time to live of zero, results are not kept after they are computed, so only the concurrent calls
+ * are collapsed.</p>
+ *
+ * @param <K> key type
+ * @param <V> result type
+ * @since 2.2
+ */
+public class ResultCache<K, V> {
+
+    /**
+     * Number of entries from which expired entries are purged when a new entry is added.
+     */
+    private static final int PURGE_THRESHOLD = 1000;
+
+    private final long ttlNanos;
+
+    private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<K, Entry<V>>();
+
+    private volatile long lastPurge = System.nanoTime();
+
+    /**
+     * Create a new cache.
+     *
+     * @param ttl how long a result is kept after it is computed
+     * @param unit time unit of the ttl
+     */
+    public ResultCache(long ttl, @Nonnull TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Gets the result for the given key. If there is no valid result, it is computed by the loader in the calling
+     * thread, unless another thread is already computing it, in which case we wait for that result instead.
+     * Failures are not cached.
+     *
+     * @param key key
+     * @param loader computes the result
+     * @return the result
+     * @throws ExecutionException if the loader throws an exception
+     * @throws InterruptedException if interrupted while waiting for another thread
+     */
+    public V get(@Nonnull K key, @Nonnull Callable<V> loader) throws ExecutionException, InterruptedException {
+        purge(false);
+        while (true) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null && entry.isExpired(System.nanoTime(), ttlNanos)) {
+                entries.remove(key, entry);
+                entry = null;
+            }
+            if (entry == null) {
+                final Entry<V> created = new Entry<V>(new FutureTask<V>(loader));
+                entry = entries.putIfAbsent(key, created);
+                if (entry == null) {
+                    entry = created;
+                    purge(true);
+                    created.run();
+                    if (ttlNanos <= 0) {
+                        entries.remove(key, created);
+                    }
+                }
+            }
+            try {
+                return entry.task.get();
+            } catch (ExecutionException e) {
+                entries.remove(key, entry);
+                throw e;
+            } catch (CancellationException e) {
+                // computation cancelled, try again
+                entries.remove(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Puts a result, replacing any previous result for the key.
+     *
+     * @param key key
+     * @param value result
+     */
+    public void put(@Nonnull K key, V value) {
+        final FutureTask<V> task = new FutureTask<V>(new Constant<V>(value));
+        final Entry<V> entry = new Entry<V>(task);
+        entry.run();
+        entries.put(key, entry);
+    }
+
+    /**
+     * Removes the result of a key.
+     *
+     * @param key key
+     */
+    public void invalidate(@Nonnull K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Removes all the results.
+     */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * Removes the results of the keys accepted by a filter.
+     *
+     * @param filter selects the keys to remove
+     */
+    public void invalidateAll(@Nonnull KeyFilter<? super K> filter) {
+        for (Iterator<K> it = entries.keySet().iterator(); it.hasNext();) {
+            if (filter.accept(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of entries, including those being computed and those that expired but were not
+     * purged yet.
+     *
+     * @return number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes the expired entries, at most once per time to live, or when an entry is added and there are too
+     * many entries. Entries are then never kept much longer than their time to live, even if their key is never
+     * used again.
+     *
+     * @param adding whether an entry is being added
+     */
+    private void purge(boolean adding) {
+        final long now = System.nanoTime();
+        final boolean due = ttlNanos > 0 && now - lastPurge >= ttlNanos;
+        if (!due && !(adding && entries.size() >= PURGE_THRESHOLD))
+            return;
+        lastPurge = now;
+        for (Iterator<Entry<V>> it = entries.values().iterator(); it.hasNext();) {
+            if (it.next().isExpired(now, ttlNanos)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Selects keys of a cache.
+     *
+     * @param <K> key type
+     */
+    public interface KeyFilter<K> {
+        /**
+         * @param key key
+         * @return whether the key is selected
+         */
+        boolean accept(K key);
+    }
+
+    /**
+     * A result being computed, or computed at a given time.
+     */
+    private static final class Entry<V> {
+        private final FutureTask<V> task;
+        private volatile long computedAt;
+        private volatile boolean computed = false;
+
+        Entry(FutureTask<V> task) {
+            this.task = task;
+        }
+
+        void run() {
+            try {
+                task.run();
+            } finally {
+                computedAt = System.nanoTime();
+                computed = true;
+            }
+        }
+
+        boolean isExpired(long now, long ttlNanos) {
+            return computed && now - computedAt >= ttlNanos;
+        }
+    }
+
+    private static final class Constant<V> implements Callable<V> {
+        private final V value;
+
+        Constant(V value) {
+            this.value = value;
+        }
+
+        @Override
+        public V call() {
+            return value;
+        }
+    }
+
+}
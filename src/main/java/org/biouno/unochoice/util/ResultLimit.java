@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * <p>Limits the size of script results, so that a script returning too many choices cannot exhaust the memory
+ * of the controller, nor of the browser. Results over the limits are truncated, a warning is logged, and the
+ * number of truncated results is incremented.</p>
+ *
+ * <p>Maps and lists keep their first choices that fit, in a {@link ChoiceList} marked as truncated. Strings, as
+ * returned for dynamic reference parameters, keep their first characters. Sizes are measured in characters, as
+ * in the JSON sent to the UI.</p>
+ *
+ * <p>The global limits apply to every result. Parameters can have lower limits.</p>
+ *
+ * @since 2.2
+ */
+public final class ResultLimit {
+
+    private static final Logger LOGGER = Logger.getLogger(ResultLimit.class.getName());
+
+    /**
+     * Maximum number of choices of a result.
+     */
+    public static final int MAX_CHOICES = Integer.getInteger(ResultLimit.class.getName() + ".maxChoices", 100000);
+
+    /**
+     * Maximum size of a result, in characters.
+     */
+    public static final int MAX_SIZE = Integer.getInteger(ResultLimit.class.getName() + ".maxSize",
+            16 * 1024 * 1024);
+
+    private static final AtomicLong TRUNCATED_RESULTS = new AtomicLong();
+
+    private ResultLimit() {}
+
+    /**
+     * Applies the global limits to a result.
+     *
+     * @param result script result
+     * @param name name of the parameter, or of the script, for the warning
+     * @return the result, or the part of it that fits
+     */
+    public static @Nullable Object apply(@Nullable Object result, @CheckForNull String name) {
+        return apply(result, null, null, name);
+    }
+
+    /**
+     * Applies the limits of a parameter to a result. The global limits apply too.
+     *
+     * @param result script result
+     * @param maxChoices maximum number of choices of the parameter, or {@code null} for the global limit
+     * @param maxSize maximum size of the parameter, or {@code null} for the global limit
+     * @param name name of the parameter, or of the script, for the warning
+     * @return the result, or the part of it that fits
+     */
+    public static @Nullable Object apply(@Nullable Object result, @CheckForNull Integer maxChoices,
+            @CheckForNull Integer maxSize, @CheckForNull String name) {
+        final int choicesLimit = limit(maxChoices, MAX_CHOICES);
+        final int sizeLimit = limit(maxSize, MAX_SIZE);
+        Object truncated = null;
+        if (result instanceof Map) {
+            truncated = ChoiceList.truncate((Map<?, ?>) result, choicesLimit, sizeLimit);
+        } else if (result instanceof List) {
+            truncated = ChoiceList.truncate((List<?>) result, choicesLimit, sizeLimit);
+        } else if (result instanceof CharSequence && ((CharSequence) result).length() > sizeLimit) {
+            truncated = ((CharSequence) result).subSequence(0, sizeLimit).toString();
+        }
+        if (truncated == null) {
+            return result;
+        }
+        TRUNCATED_RESULTS.incrementAndGet();
+        LOGGER.log(Level.WARNING, "Result of {0} truncated, as it has more than {1} choices, or {2} characters",
+                new Object[] { name, choicesLimit, sizeLimit });
+        return truncated;
+    }
+
+    /**
+     * @return number of results truncated since Jenkins started
+     */
+    public static long getTruncatedResults() {
+        return TRUNCATED_RESULTS.get();
+    }
+
+    private static int limit(Integer limit, int global) {
+        return limit == null || limit <= 0 ? global : Math.min(limit, global);
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.kohsuke.groovy.sandbox.GroovyInterceptor;
+
+/**
+ * <p>A script evaluation in progress, with the job, parameter and user it runs for, so that administrators can
+ * see what is running, and cancel it.</p>
+ *
+ * <p>Cancelling interrupts the thread running the script. Sandboxed scripts are also stopped at their next method
+ * call, or property access, so that busy loops end too. Scripts that are not sandboxed, and never block, run
+ * until they finish.</p>
+ *
+ * @since 2.2
+ */
+public final class RunningEvaluation {
+
+    /**
+     * Maximum number of frames kept in a stack sample.
+     */
+    public static final int STACK_DEPTH = Integer.getInteger(RunningEvaluation.class.getName() + ".stackDepth", 30);
+
+    private static final AtomicLong IDS = new AtomicLong();
+
+    private static final ConcurrentNavigableMap<Long, RunningEvaluation> RUNNING =
+            new ConcurrentSkipListMap<Long, RunningEvaluation>();
+
+    private static final ThreadLocal<RunningEvaluation> CURRENT = new ThreadLocal<RunningEvaluation>();
+
+    private final long id;
+    private final String job;
+    private final String parameter;
+    private final String user;
+    private final Thread thread;
+    private final long startedAt;
+    private final long startNanos;
+    private final RunningEvaluation previous;
+    private final Interceptor interceptor = new Interceptor();
+
+    private volatile boolean cancelled = false;
+    private boolean finished = false;
+
+    private RunningEvaluation(String job, String parameter, String user) {
+        this.id = IDS.incrementAndGet();
+        this.job = job;
+        this.parameter = parameter;
+        this.user = user;
+        this.thread = Thread.currentThread();
+        this.startedAt = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        this.previous = CURRENT.get();
+    }
+
+    /**
+     * Starts an evaluation in the current thread. It must be finished in the same thread, with
+     * {@link #finish()}.
+     *
+     * @param job full name of the job, if known
+     * @param parameter parameter name
+     * @param user name of the user the script runs for
+     * @return the evaluation
+     */
+    public static @Nonnull RunningEvaluation start(@CheckForNull String job, @CheckForNull String parameter,
+            @CheckForNull String user) {
+        final RunningEvaluation evaluation = new RunningEvaluation(job, parameter, user);
+        RUNNING.put(evaluation.id, evaluation);
+        CURRENT.set(evaluation);
+        evaluation.interceptor.register();
+        return evaluation;
+    }
+
+    /**
+     * Finishes this evaluation. If it was cancelled, the interrupt is cleared, so that it does not leak to
+     * whatever the thread does next.
+     */
+    public void finish() {
+        interceptor.unregister();
+        synchronized (this) {
+            finished = true;
+            if (cancelled) {
+                Thread.interrupted();
+            }
+        }
+        RUNNING.remove(id);
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Cancels this evaluation, interrupting the thread running the script.
+     */
+    public synchronized void cancel() {
+        if (finished || cancelled)
+            return;
+        cancelled = true;
+        thread.interrupt();
+    }
+
+    /**
+     * @return the evaluations in progress, in the order they started
+     */
+    public static @Nonnull List<RunningEvaluation> getAll() {
+        return Collections.unmodifiableList(new ArrayList<RunningEvaluation>(RUNNING.values()));
+    }
+
+    /**
+     * @param id evaluation id
+     * @return the evaluation in progress with the given id, or {@code null} if it finished
+     */
+    public static @CheckForNull RunningEvaluation get(long id) {
+        return RUNNING.get(id);
+    }
+
+    /**
+     * Checks whether the evaluation running in the current thread was cancelled, in which case the script
+     * failure is not a script error, and the interrupt is cleared so that a fallback can still run.
+     *
+     * @return {@code true} if the evaluation in the current thread was cancelled
+     */
+    public static boolean clearCancelled() {
+        final RunningEvaluation evaluation = CURRENT.get();
+        if (evaluation != null && evaluation.cancelled) {
+            Thread.interrupted();
+            // any method called by a fallback must not be stopped
+            evaluation.interceptor.unregister();
+            return true;
+        }
+        return false;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getJob() {
+        return job;
+    }
+
+    public String getParameter() {
+        return parameter;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getThreadName() {
+        return thread.getName();
+    }
+
+    /**
+     * @return when the evaluation started, in milliseconds since the epoch
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return how long the evaluation has been running, in milliseconds
+     */
+    public long getElapsed() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Samples the stack of the thread running the script.
+     *
+     * @return up to {@link #STACK_DEPTH} frames, the current one first
+     */
+    public @Nonnull List<StackTraceElement> getStackTrace() {
+        final StackTraceElement[] stack = thread.getStackTrace();
+        return Arrays.asList(stack).subList(0, Math.min(STACK_DEPTH, stack.length));
+    }
+
+    /**
+     * Stops sandboxed scripts at their next call once the evaluation is cancelled.
+     */
+    private final class Interceptor extends GroovyInterceptor {
+        private void check() {
+            if (cancelled) {
+                throw new CancellationException("Evaluation cancelled by an administrator");
+            }
+        }
+
+        @Override
+        public Object onMethodCall(Invoker invoker, Object receiver, String method, Object... args)
+                throws Throwable {
+            check();
+            return super.onMethodCall(invoker, receiver, method, args);
+        }
+
+        @Override
+        public Object onStaticCall(Invoker invoker, Class receiver, String method, Object... args)
+                throws Throwable {
+            check();
+            return super.onStaticCall(invoker, receiver, method, args);
+        }
+
+        @Override
+        public Object onNewInstance(Invoker invoker, Class receiver, Object... args) throws Throwable {
+            check();
+            return super.onNewInstance(invoker, receiver, args);
+        }
+
+        @Override
+        public Object onGetProperty(Invoker invoker, Object receiver, String property) throws Throwable {
+            check();
+            return super.onGetProperty(invoker, receiver, property);
+        }
+    }
+
+}
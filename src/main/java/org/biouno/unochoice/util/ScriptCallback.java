@@ -32,6 +32,7 @@ import org.jenkinsci.remoting.RoleChecker;
 import org.jenkinsci.remoting.RoleSensitive;
 
 import hudson.remoting.Callable;
+import jenkins.model.Jenkins;
 
 /**
  * A callable (Jenkins remoting API) object that executes the script locally (when executed in the master)
@@ -49,6 +50,7 @@ public class ScriptCallback<T extends Throwable> implements Callable<Object, T>
     private final Script script;
     // Map is not serializable, but LinkedHashMap is. Ignore static analysis errors
     private Map<String, String> parameters;
+    private final String project;
 
     /**
      * Create a new ScriptCallback. This can be used to execute code either local or
@@ -58,9 +60,22 @@ public class ScriptCallback<T extends Throwable> implements Callable<Object, T>
      * @param parameters Map of parameters
      */
     public ScriptCallback(String name, Script script, Map<String, String> parameters) {
+        this(name, script, parameters, null);
+    }
+
+    /**
+     * Create a new ScriptCallback, for a parameter of a job.
+     * @param name callable name
+     * @param script script
+     * @param parameters Map of parameters
+     * @param project full name of the job, shown in the running evaluations
+     * @since 2.2
+     */
+    public ScriptCallback(String name, Script script, Map<String, String> parameters, String project) {
         this.name = name;
         this.script = script;
         this.parameters = parameters;
+        this.project = project;
     }
 
     /**
@@ -93,8 +108,14 @@ public class ScriptCallback<T extends Throwable> implements Callable<Object, T>
      */
     @Override
     public Object call() throws T {
-        final Object eval = script.eval(getParameters());
-        return eval;
+        final RunningEvaluation evaluation = RunningEvaluation.start(project, name,
+                Jenkins.getAuthentication().getName());
+        try {
+            final Object eval = script.eval(getParameters());
+            return eval;
+        } finally {
+            evaluation.finish();
+        }
     }
 
     /*
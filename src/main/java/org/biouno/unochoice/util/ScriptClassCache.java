@@ -0,0 +1,294 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice.util;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
+
+/**
+ * <p>Compiled script classes, each with its own long-lived class loader.</p>
+ *
+ * <p>Scripts are compiled once, and then a new instance of the script class is created for each evaluation,
+ * instead of compiling the script, and defining new classes, on every evaluation. When a script is evicted,
+ * because the cache is full or because it was not used for a while, its class loader is disposed of, so that
+ * its classes can be unloaded.</p>
+ *
+ * @since 2.2
+ */
+public final class ScriptClassCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptClassCache.class.getName());
+
+    /**
+     * Maximum number of compiled scripts.
+     */
+    public static final int CAPACITY = Integer.getInteger(ScriptClassCache.class.getName() + ".capacity", 500);
+
+    /**
+     * How long, in minutes, a compiled script that is not used is kept.
+     */
+    public static final int MAX_IDLE = Integer.getInteger(ScriptClassCache.class.getName() + ".maxIdle", 60);
+
+    private static final ScriptClassCache INSTANCE = new ScriptClassCache(CAPACITY, MAX_IDLE, TimeUnit.MINUTES);
+
+    private final int capacity;
+    private final long maxIdleNanos;
+
+    /**
+     * Compiled scripts, from the least to the most recently used. Guarded by this.
+     */
+    private final LinkedHashMap<Object, CompiledScript> scripts;
+
+    private final AtomicLong compiledScripts = new AtomicLong();
+    private final AtomicLong definedClasses = new AtomicLong();
+    private final AtomicLong disposedScripts = new AtomicLong();
+    private final AtomicLong disposedClasses = new AtomicLong();
+
+    /**
+     * Create a new cache.
+     *
+     * @param capacity maximum number of compiled scripts
+     * @param maxIdle how long a compiled script that is not used is kept
+     * @param unit time unit of the max idle time
+     */
+    public ScriptClassCache(int capacity, long maxIdle, @Nonnull TimeUnit unit) {
+        this.capacity = capacity;
+        this.maxIdleNanos = unit.toNanos(maxIdle);
+        this.scripts = new LinkedHashMap<Object, CompiledScript>(16, 0.75f, true) {
+            private static final long serialVersionUID = 6925734583920742364L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, CompiledScript> eldest) {
+                if (size() > ScriptClassCache.this.capacity) {
+                    dispose(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the cache used to evaluate scripts
+     */
+    public static @Nonnull ScriptClassCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the class of a script, compiling it if it is not in the cache.
+     *
+     * @param key identifies the script, and how it is compiled
+     * @param parent parent class loader
+     * @param configuration compiler configuration
+     * @param script script text
+     * @param fileName file name of the script class
+     * @return script class
+     * @throws org.codehaus.groovy.control.CompilationFailedException if the script cannot be compiled
+     */
+    public @Nonnull Class<? extends Script> getScriptClass(@Nonnull Object key, @Nonnull ClassLoader parent,
+            @Nonnull CompilerConfiguration configuration, @Nonnull String script, @Nonnull String fileName) {
+        synchronized (this) {
+            purge();
+            final CompiledScript compiled = scripts.get(key);
+            if (compiled != null && compiled.parent == parent) {
+                compiled.lastUsed = System.nanoTime();
+                return compiled.scriptClass;
+            }
+        }
+        // compiled outside the lock, as it may take a while
+        final CompiledScript compiled = compile(parent, configuration, script, fileName);
+        synchronized (this) {
+            final CompiledScript other = scripts.get(key);
+            if (other != null && other.parent == parent) {
+                // compiled by another thread in the meantime
+                dispose(compiled);
+                return other.scriptClass;
+            }
+            final CompiledScript previous = scripts.put(key, compiled);
+            if (previous != null) {
+                dispose(previous);
+            }
+        }
+        return compiled.scriptClass;
+    }
+
+    /**
+     * Removes a compiled script, and disposes of its class loader.
+     *
+     * @param key identifies the script
+     */
+    public synchronized void invalidate(@Nonnull Object key) {
+        final CompiledScript compiled = scripts.remove(key);
+        if (compiled != null) {
+            dispose(compiled);
+        }
+    }
+
+    /**
+     * Removes all the compiled scripts, and disposes of their class loaders.
+     */
+    public synchronized void invalidateAll() {
+        for (CompiledScript compiled : scripts.values()) {
+            dispose(compiled);
+        }
+        scripts.clear();
+    }
+
+    /**
+     * @return number of compiled scripts in the cache
+     */
+    public synchronized int size() {
+        return scripts.size();
+    }
+
+    /**
+     * @return number of scripts compiled since startup
+     */
+    public long getCompiledScripts() {
+        return compiledScripts.get();
+    }
+
+    /**
+     * @return number of classes defined by compiled scripts since startup, including the classes of closures
+     */
+    public long getDefinedClasses() {
+        return definedClasses.get();
+    }
+
+    /**
+     * @return number of compiled scripts whose class loader was disposed of since startup
+     */
+    public long getDisposedScripts() {
+        return disposedScripts.get();
+    }
+
+    /**
+     * @return number of classes of compiled scripts released since startup, which can then be unloaded
+     */
+    public long getDisposedClasses() {
+        return disposedClasses.get();
+    }
+
+    /**
+     * @return number of classes unloaded by the JVM since startup, for all class loaders
+     */
+    public long getUnloadedClasses() {
+        return ManagementFactory.getClassLoadingMXBean().getUnloadedClassCount();
+    }
+
+    private CompiledScript compile(ClassLoader parent, CompilerConfiguration configuration, String script,
+            String fileName) {
+        final GroovyClassLoader loader = new GroovyClassLoader(parent, configuration);
+        final Class<? extends Script> scriptClass;
+        try {
+            scriptClass = loader.parseClass(script, fileName).asSubclass(Script.class);
+        } catch (RuntimeException e) {
+            close(loader);
+            throw e;
+        }
+        compiledScripts.incrementAndGet();
+        definedClasses.addAndGet(loader.getLoadedClasses().length);
+        return new CompiledScript(parent, loader, scriptClass);
+    }
+
+    /**
+     * Removes the scripts that were not used for longer than the max idle time. Must hold the lock.
+     */
+    private void purge() {
+        final long now = System.nanoTime();
+        // in access order, so we can stop at the first script that was used recently
+        for (Iterator<CompiledScript> it = scripts.values().iterator(); it.hasNext();) {
+            final CompiledScript compiled = it.next();
+            if (now - compiled.lastUsed < maxIdleNanos) {
+                break;
+            }
+            it.remove();
+            dispose(compiled);
+        }
+    }
+
+    /**
+     * Releases the classes of a compiled script. Evaluations still running keep working, as their classes are
+     * already loaded.
+     */
+    private void dispose(CompiledScript compiled) {
+        final Class<?>[] classes = compiled.loader.getLoadedClasses();
+        for (Class<?> c : classes) {
+            // otherwise the Groovy meta class registry keeps a reference to the class
+            InvokerHelper.removeClass(c);
+        }
+        close(compiled.loader);
+        disposedScripts.incrementAndGet();
+        disposedClasses.addAndGet(classes.length);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(String.format("Disposed of compiled script %s and %d classes. Compiled scripts: %d, "
+                    + "defined classes: %d, disposed classes: %d", compiled.scriptClass.getName(), classes.length,
+                    compiledScripts.get(), definedClasses.get(), disposedClasses.get()));
+        }
+    }
+
+    private static void close(GroovyClassLoader loader) {
+        loader.clearCache();
+        try {
+            loader.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close script class loader", e);
+        }
+    }
+
+    /**
+     * A script class, and the class loader that defined it.
+     */
+    private static final class CompiledScript {
+        private final ClassLoader parent;
+        private final GroovyClassLoader loader;
+        private final Class<? extends Script> scriptClass;
+        private volatile long lastUsed = System.nanoTime();
+
+        CompiledScript(ClassLoader parent, GroovyClassLoader loader, Class<? extends Script> scriptClass) {
+            this.parent = parent;
+            this.loader = loader;
+            this.scriptClass = scriptClass;
+        }
+    }
+
+}
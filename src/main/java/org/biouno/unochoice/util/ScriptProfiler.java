@@ -0,0 +1,237 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.biouno.unochoice.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kohsuke.groovy.sandbox.GroovyInterceptor;
+
+/**
+ * <p>Profiles a sandboxed Groovy script. Registered as a sandbox interceptor, it measures the wall and CPU time
+ * of each method, static method and constructor called by the script, and counts every interception (calls,
+ * property and array accesses).</p>
+ *
+ * <p>Times are inclusive, i.e. the time of a method includes the time of the methods it calls. Scripts that are
+ * not sandboxed are not intercepted, so only the total time is measured.</p>
+ *
+ * <p>Not thread safe. A profiler must be registered, used and unregistered in the thread running the script.</p>
+ *
+ * @since 2.2
+ */
+public class ScriptProfiler extends GroovyInterceptor {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final Map<String, Stats> methods = new HashMap<String, Stats>();
+    private long interceptions = 0;
+    private long startWall;
+    private long startCpu;
+    private long wallNanos;
+    private long cpuNanos;
+
+    /**
+     * Registers the profiler in the current thread, and starts the clock.
+     */
+    public void start() {
+        register();
+        startWall = System.nanoTime();
+        startCpu = cpuTime();
+    }
+
+    /**
+     * Stops the clock, and unregisters the profiler from the current thread.
+     */
+    public void stop() {
+        wallNanos = System.nanoTime() - startWall;
+        cpuNanos = cpuTime() - startCpu;
+        unregister();
+    }
+
+    /**
+     * @return total wall time, in nanoseconds
+     */
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    /**
+     * @return total CPU time, in nanoseconds, or zero if the JVM does not measure it
+     */
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    /**
+     * @return number of sandbox interceptions
+     */
+    public long getInterceptions() {
+        return interceptions;
+    }
+
+    /**
+     * Gets the methods called by the script, slowest first.
+     *
+     * @return the methods statistics
+     */
+    public List<Stats> getMethods() {
+        final List<Stats> list = new ArrayList<Stats>(methods.values());
+        Collections.sort(list, new Comparator<Stats>() {
+            @Override
+            public int compare(Stats o1, Stats o2) {
+                return Long.compare(o2.wallNanos, o1.wallNanos);
+            }
+        });
+        return list;
+    }
+
+    // --- interceptor
+
+    @Override
+    public Object onMethodCall(Invoker invoker, Object receiver, String method, Object... args) throws Throwable {
+        final String name = (receiver == null ? "null" : receiver.getClass().getName()) + "." + method;
+        return measure(name, invoker, receiver, method, args);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Object onStaticCall(Invoker invoker, Class receiver, String method, Object... args) throws Throwable {
+        return measure(receiver.getName() + "." + method, invoker, receiver, method, args);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Object onNewInstance(Invoker invoker, Class receiver, Object... args) throws Throwable {
+        return measure("new " + receiver.getName(), invoker, receiver, null, args);
+    }
+
+    @Override
+    public Object onGetProperty(Invoker invoker, Object receiver, String property) throws Throwable {
+        interceptions++;
+        return super.onGetProperty(invoker, receiver, property);
+    }
+
+    @Override
+    public Object onSetProperty(Invoker invoker, Object receiver, String property, Object value) throws Throwable {
+        interceptions++;
+        return super.onSetProperty(invoker, receiver, property, value);
+    }
+
+    @Override
+    public Object onGetAttribute(Invoker invoker, Object receiver, String attribute) throws Throwable {
+        interceptions++;
+        return super.onGetAttribute(invoker, receiver, attribute);
+    }
+
+    @Override
+    public Object onSetAttribute(Invoker invoker, Object receiver, String attribute, Object value) throws Throwable {
+        interceptions++;
+        return super.onSetAttribute(invoker, receiver, attribute, value);
+    }
+
+    @Override
+    public Object onGetArray(Invoker invoker, Object receiver, Object index) throws Throwable {
+        interceptions++;
+        return super.onGetArray(invoker, receiver, index);
+    }
+
+    @Override
+    public Object onSetArray(Invoker invoker, Object receiver, Object index, Object value) throws Throwable {
+        interceptions++;
+        return super.onSetArray(invoker, receiver, index, value);
+    }
+
+    private Object measure(String name, Invoker invoker, Object receiver, String method, Object[] args)
+            throws Throwable {
+        interceptions++;
+        final long wall = System.nanoTime();
+        final long cpu = cpuTime();
+        try {
+            return invoker.call(receiver, method, args);
+        } finally {
+            Stats stats = methods.get(name);
+            if (stats == null) {
+                stats = new Stats(name);
+                methods.put(name, stats);
+            }
+            stats.calls++;
+            stats.wallNanos += System.nanoTime() - wall;
+            stats.cpuNanos += cpuTime() - cpu;
+        }
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0L;
+    }
+
+    /**
+     * Statistics of a method.
+     */
+    public static final class Stats {
+        private final String name;
+        private long calls = 0;
+        private long wallNanos = 0;
+        private long cpuNanos = 0;
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return class and method name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return number of calls
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return wall time of all the calls, in nanoseconds
+         */
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        /**
+         * @return CPU time of all the calls, in nanoseconds
+         */
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.codehaus.groovy.ast.ClassCodeVisitorSupport;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.DynamicVariable;
+import org.codehaus.groovy.ast.ModuleNode;
+import org.codehaus.groovy.ast.expr.ArgumentListExpression;
+import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.MethodCallExpression;
+import org.codehaus.groovy.ast.expr.PropertyExpression;
+import org.codehaus.groovy.ast.expr.VariableExpression;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.control.SourceUnit;
+
+import groovy.lang.GroovyClassLoader;
+
+/**
+ * <p>Finds the binding variables that a Groovy script reads, by analysing its syntax tree, without running it.
+ * Those are the variables the script uses without declaring them, the variables read through the
+ * <code>binding</code> with a constant name, and the names of the methods called on the script, which may be
+ * closures in the binding.</p>
+ *
+ * <p>When the script reads the binding in other ways, e.g. <code>binding.variables</code>,
+ * <code>getProperty(name)</code> with a computed name, or by passing the script itself around, or when it cannot
+ * be compiled, the variables it reads are unknown.</p>
+ *
+ * @since 2.2
+ */
+public final class ScriptVariables {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptVariables.class.getName());
+
+    /**
+     * Grapes must not be downloaded just to analyse a script.
+     */
+    private static final Set<String> DISABLED_TRANSFORMATIONS = Collections.singleton(
+            "groovy.grape.GrabAnnotationTransformation");
+
+    private static final String BINDING = "binding";
+
+    /**
+     * Properties and methods of scripts, and of closures, that give access to the whole binding, or to other
+     * objects that do.
+     */
+    private static final Set<String> BINDING_ACCESSORS = new HashSet<String>(Arrays.asList(BINDING, "properties",
+            "metaClass", "class", "owner", "delegate", "thisObject", "getBinding", "getProperties", "getMetaClass",
+            "getClass", "getOwner", "getDelegate", "getThisObject", "evaluate", "invokeMethod", "run"));
+
+    private ScriptVariables() {}
+
+    /**
+     * Finds the binding variables that a script reads.
+     *
+     * <p>The script is compiled, which runs its AST transformations, e.g. <code>@ASTTest</code>, so it must be
+     * a script that could be run outside of the sandbox anyway.</p>
+     *
+     * @param script script text
+     * @param loader class loader used to resolve the classes of the script
+     * @return the names of the variables, or {@code null} if they are unknown
+     */
+    public static @CheckForNull Set<String> getReadVariables(@Nonnull String script, @Nonnull ClassLoader loader) {
+        final CompilerConfiguration configuration = new CompilerConfiguration();
+        configuration.setDisabledGlobalASTTransformations(DISABLED_TRANSFORMATIONS);
+        final GroovyClassLoader classLoader = new GroovyClassLoader(loader, configuration);
+        try {
+            final CompilationUnit unit = new CompilationUnit(configuration, null, classLoader);
+            final SourceUnit source = unit.addSource("Script1.groovy", script);
+            // variable scopes are resolved in the semantic analysis
+            unit.compile(Phases.SEMANTIC_ANALYSIS);
+            final Visitor visitor = new Visitor(source);
+            final ModuleNode module = source.getAST();
+            for (ClassNode classNode : module.getClasses()) {
+                visitor.visitClass(classNode);
+            }
+            return visitor.unknown ? null : Collections.unmodifiableSet(visitor.variables);
+        } catch (Exception | LinkageError e) {
+            LOGGER.log(Level.FINE, "Failed to analyse script, the variables it reads are unknown", e);
+            return null;
+        } finally {
+            try {
+                classLoader.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close class loader", e);
+            }
+        }
+    }
+
+    private static final class Visitor extends ClassCodeVisitorSupport {
+
+        private final SourceUnit source;
+        private final Set<String> variables = new HashSet<String>();
+        private boolean unknown = false;
+
+        Visitor(SourceUnit source) {
+            this.source = source;
+        }
+
+        @Override
+        protected SourceUnit getSourceUnit() {
+            return source;
+        }
+
+        @Override
+        public void visitVariableExpression(VariableExpression expression) {
+            if (expression.isThisExpression()) {
+                // the script itself, used in a way we cannot follow
+                unknown = true;
+            } else if (expression.getAccessedVariable() instanceof DynamicVariable) {
+                if (BINDING_ACCESSORS.contains(expression.getName())) {
+                    // the binding itself, used in a way we cannot follow
+                    unknown = true;
+                } else {
+                    variables.add(expression.getName());
+                }
+            }
+            super.visitVariableExpression(expression);
+        }
+
+        @Override
+        public void visitPropertyExpression(PropertyExpression expression) {
+            if (isBinding(expression.getObjectExpression())) {
+                // binding.name
+                final String name = expression.getPropertyAsString();
+                if (name == null || "variables".equals(name) || "properties".equals(name)) {
+                    unknown = true;
+                } else {
+                    variables.add(name);
+                }
+                return;
+            }
+            if (isThis(expression.getObjectExpression())) {
+                // this.name, read from the binding too
+                final String name = expression.getPropertyAsString();
+                if (name == null || BINDING_ACCESSORS.contains(name)) {
+                    unknown = true;
+                } else {
+                    variables.add(name);
+                }
+                return;
+            }
+            super.visitPropertyExpression(expression);
+        }
+
+        @Override
+        public void visitMethodCallExpression(MethodCallExpression call) {
+            final String method = call.getMethodAsString();
+            if (isBinding(call.getObjectExpression())) {
+                // binding.getVariable('name'), binding.hasVariable('name')
+                final String name = getConstantArgument(call);
+                if (name != null && ("getVariable".equals(method) || "hasVariable".equals(method)
+                        || "getProperty".equals(method))) {
+                    variables.add(name);
+                } else {
+                    unknown = true;
+                }
+                call.getArguments().visit(this);
+                return;
+            }
+            if (call.isImplicitThis() || isThis(call.getObjectExpression())) {
+                if ("getProperty".equals(method) && getConstantArgument(call) != null) {
+                    // getProperty('name'), read from the binding too
+                    variables.add(getConstantArgument(call));
+                } else if (method == null || "getProperty".equals(method) || BINDING_ACCESSORS.contains(method)) {
+                    unknown = true;
+                } else {
+                    // may be a closure in the binding
+                    variables.add(method);
+                }
+                call.getArguments().visit(this);
+                return;
+            }
+            super.visitMethodCallExpression(call);
+        }
+
+        private static boolean isThis(Expression expression) {
+            return expression instanceof VariableExpression && ((VariableExpression) expression).isThisExpression();
+        }
+
+        private static boolean isBinding(Expression expression) {
+            return expression instanceof VariableExpression
+                    && ((VariableExpression) expression).getAccessedVariable() instanceof DynamicVariable
+                    && BINDING.equals(((VariableExpression) expression).getName());
+        }
+
+        private static String getConstantArgument(MethodCallExpression call) {
+            if (call.getArguments() instanceof ArgumentListExpression) {
+                final ArgumentListExpression arguments = (ArgumentListExpression) call.getArguments();
+                if (arguments.getExpressions().size() == 1
+                        && arguments.getExpression(0) instanceof ConstantExpression) {
+                    final Object value = ((ConstantExpression) arguments.getExpression(0)).getValue();
+                    return value instanceof String ? (String) value : null;
+                }
+            }
+            return null;
+        }
+    }
+
+}
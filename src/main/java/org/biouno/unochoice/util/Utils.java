@@ -29,39 +29,42 @@ import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
-import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
 import org.biouno.unochoice.AbstractUnoChoiceParameter;
 import org.jenkinsci.plugins.scriptler.config.Script;
 import org.jenkinsci.plugins.scriptler.config.ScriptlerConfiguration;
 
+import hudson.Util;
 import hudson.model.Item;
 import hudson.model.Items;
+import hudson.model.Job;
 import hudson.model.ParameterDefinition;
 import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Project;
 import hudson.security.ACL;
-import hudson.slaves.EnvironmentVariablesNodeProperty;
-import hudson.slaves.NodeProperty;
-import hudson.slaves.NodePropertyDescriptor;
 import hudson.tasks.BuildWrapper;
-import hudson.util.DescribableList;
 import hudson.util.ReflectionUtils;
 import jenkins.model.Jenkins;
 import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 
 /**
  * Utility methods.
@@ -144,6 +147,93 @@ public class Utils {
         return System.getenv();
     }
 
+    // --- conditional requests
+
+    /**
+     * Computes a strong entity tag for the given choices. The digest covers the type and text of every key and
+     * value, in order, and whether the choices were truncated, so two maps get the same tag only if they would be
+     * serialized to the same JSON.
+     *
+     * @since 2.2
+     * @param choices parameter choices
+     * @return quoted entity tag
+     */
+    public static @Nonnull String computeETag(@Nonnull Map<?, ?> choices) {
+        final MessageDigest digest = newDigest();
+        for (Entry<?, ?> entry : choices.entrySet()) {
+            update(digest, entry.getKey());
+            update(digest, entry.getValue());
+        }
+        if (choices instanceof ChoiceList && ((ChoiceList) choices).isTruncated()) {
+            // an odd number of items, so it cannot be mistaken for a choice
+            update(digest, Boolean.TRUE);
+        }
+        return toETag(digest);
+    }
+
+    /**
+     * Computes a strong entity tag for the given text.
+     *
+     * @since 2.2
+     * @param text text returned to the UI
+     * @return quoted entity tag
+     */
+    public static @Nonnull String computeETag(@Nullable String text) {
+        final MessageDigest digest = newDigest();
+        update(digest, text);
+        return toETag(digest);
+    }
+
+    /**
+     * Checks whether the value of an If-None-Match header matches the given entity tag.
+     *
+     * @since 2.2
+     * @param ifNoneMatch If-None-Match header value, may be a comma separated list
+     * @param eTag current entity tag
+     * @return {@code true} if the client already has the current representation
+     */
+    public static boolean matchesETag(@Nullable String ifNoneMatch, @Nonnull String eTag) {
+        if (StringUtils.isBlank(ifNoneMatch))
+            return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(eTag))
+                return true;
+        }
+        return false;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not supported by the JVM", e);
+        }
+    }
+
+    private static void update(MessageDigest digest, @Nullable Object obj) {
+        // a type marker, as 1 and "1" produce different JSON
+        final char type;
+        if (obj == null)
+            type = 'z';
+        else if (obj instanceof Number)
+            type = 'n';
+        else if (obj instanceof Boolean)
+            type = 'b';
+        else if (obj instanceof CharSequence)
+            type = 's';
+        else
+            type = 'o';
+        digest.update((byte) type);
+        if (obj != null)
+            digest.update(obj.toString().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String toETag(MessageDigest digest) {
+        return "\"" + Util.toHexString(digest.digest()) + "\"";
+    }
+
     /**
      * Get project in Jenkins given its name.
      *
@@ -163,6 +253,41 @@ public class Utils {
         return null;
     }
 
+    /**
+     * Get a job in Jenkins given its full name, if the current user can read it.
+     *
+     * @since 2.2
+     * @param fullName job full name, as in {@link Item#getFullName()}
+     * @return job or {@code null} if none with this name, or if the user cannot read it
+     */
+    public static @CheckForNull Job<?, ?> getJobByFullName(@Nonnull String fullName) {
+        Authentication auth = Jenkins.getAuthentication();
+        Job<?, ?> job;
+        final SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+        try {
+            job = Jenkins.getInstance().getItemByFullName(fullName, Job.class);
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+        if (job != null && job.getACL().hasPermission(auth, Item.READ)) {
+            return job;
+        }
+        return null;
+    }
+
+    /**
+     * Find the job of a parameter given its UUID. Works with any type of {@link Job}, such as Pipeline jobs, and
+     * uses an index of the parameters of each job instead of iterating through all the items.
+     *
+     * @since 2.2
+     * @param parameterUUID parameter UUID
+     * @return {@code null} if the job cannot be found, or if the user cannot read it
+     * @see JobIndex
+     */
+    public static @CheckForNull Job<?, ?> findJobByParameterUUID(@Nonnull String parameterUUID) {
+        return JobIndex.findByParameterUUID(parameterUUID);
+    }
+
     /**
      * Find the current project give its parameter UUID.
      *
@@ -170,55 +295,55 @@ public class Utils {
      * @since 1.3
      * @param parameterUUID parameter UUID
      * @return {@code null} if the current project cannot be found
+     * @deprecated Only finds freestyle and matrix projects; use {@link #findJobByParameterUUID(String)} instead.
      */
     @SuppressWarnings("rawtypes")
+    @Deprecated
     public static @CheckForNull Project findProjectByParameterUUID(@Nonnull String parameterUUID) {
-        Authentication auth = Jenkins.getAuthentication();
-        for (Project p : Items.allItems(ACL.SYSTEM, Jenkins.getInstance(), Project.class)) {
-            if (isParameterDefinitionOf(parameterUUID, p) && p.getACL().hasPermission(auth, Item.READ)) {
-                return p;
-            }
+        final Job<?, ?> job = findJobByParameterUUID(parameterUUID);
+        if (job instanceof Project) {
+            return (Project) job;
         }
         return null;
     }
 
     /**
-     * Returns true if this parameter definition is a definition of the given project.
+     * Get the UUIDs of the Active Choices parameters of a job.
      *
-     * @since 1.3
-     * @author dynamic-parameter-plugin
-     * @param parameterUUID UUID of the project parameter
-     * @param project the project to search for this parameter definition.
-     * @return {@code true} if the project contains this parameter definition.
+     * @since 2.2
+     * @param job the job for which the parameter UUIDs should be found
+     * @return set of parameter UUIDs, possibly empty
      */
-    private static boolean isParameterDefinitionOf(@Nonnull String parameterUUID, @Nonnull Project<?, ?> project) {
+    public static @Nonnull Set<String> getParameterUUIDs(@Nonnull Job<?, ?> job) {
         List<ParameterDefinition> parameterDefinitions = new ArrayList<ParameterDefinition>();
-        parameterDefinitions.addAll(getProjectParameterDefinitions(project));
-        for (List<ParameterDefinition> params : getBuildWrapperParameterDefinitions(project).values()) {
-            parameterDefinitions.addAll(params);
+        parameterDefinitions.addAll(getJobParameterDefinitions(job));
+        if (job instanceof Project) {
+            for (List<ParameterDefinition> params : getBuildWrapperParameterDefinitions((Project<?, ?>) job).values()) {
+                parameterDefinitions.addAll(params);
+            }
         }
+        final Set<String> uuids = new HashSet<String>();
         for (ParameterDefinition pd : parameterDefinitions) {
             if (pd instanceof AbstractUnoChoiceParameter) {
                 AbstractUnoChoiceParameter parameterDefinition = (AbstractUnoChoiceParameter) pd;
                 String uuid = parameterDefinition.getRandomName();
-                if (ObjectUtils.equals(parameterUUID, uuid)) {
-                    return true;
+                if (uuid != null) {
+                    uuids.add(uuid);
                 }
             }
         }
-        return false;
+        return uuids;
     }
 
     /**
-     * Get the parameter definitions for the given project.
+     * Get the parameter definitions for the given job.
      *
-     * @since 1.3
-     * @author dynamic-parameter-plugin
-     * @param project the project for which the parameter definitions should be found
+     * @since 2.2
+     * @param job the job for which the parameter definitions should be found
      * @return parameter definitions or an empty list
      */
-    public static @Nonnull List<ParameterDefinition> getProjectParameterDefinitions(@Nonnull Project<?, ?> project) {
-        ParametersDefinitionProperty parametersDefinitionProperty = project.getProperty(ParametersDefinitionProperty.class);
+    public static @Nonnull List<ParameterDefinition> getJobParameterDefinitions(@Nonnull Job<?, ?> job) {
+        ParametersDefinitionProperty parametersDefinitionProperty = job.getProperty(ParametersDefinitionProperty.class);
         if (parametersDefinitionProperty != null) {
             List<ParameterDefinition> parameterDefinitions = parametersDefinitionProperty.getParameterDefinitions();
             if (parameterDefinitions != null) {
@@ -229,24 +354,27 @@ public class Utils {
     }
 
     /**
-     * Get a map with the global node properties.
+     * Get the parameter definitions for the given project.
+     *
+     * @since 1.3
+     * @author dynamic-parameter-plugin
+     * @param project the project for which the parameter definitions should be found
+     * @return parameter definitions or an empty list
+     */
+    public static @Nonnull List<ParameterDefinition> getProjectParameterDefinitions(@Nonnull Project<?, ?> project) {
+        return getJobParameterDefinitions(project);
+    }
+
+    /**
+     * Get a map with the global node properties. The map is a snapshot shared by every caller, and cannot
+     * be modified.
      *
      * @since 1.6
      * @return map with global node properties
+     * @see GlobalNodeProperties
      */
     public static @Nonnull Map<String, Object> getGlobalNodeProperties() {
-        Map<String, Object> map = new HashMap<String, Object>();
-        Jenkins instance = Jenkins.getInstance();
-        DescribableList<NodeProperty<?>, NodePropertyDescriptor> globalNodeProperties = instance.getGlobalNodeProperties();
-        if (globalNodeProperties != null) {
-            for (NodeProperty<?> nodeProperty : globalNodeProperties) {
-                if (nodeProperty instanceof EnvironmentVariablesNodeProperty) {
-                    EnvironmentVariablesNodeProperty envNodeProperty = (EnvironmentVariablesNodeProperty) nodeProperty;
-                    map.putAll(envNodeProperty.getEnvVars());
-                }
-            }
-        }
-        return map;
+        return GlobalNodeProperties.get();
     }
 
     /**
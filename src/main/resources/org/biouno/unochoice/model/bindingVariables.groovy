@@ -0,0 +1,8 @@
+/*
+ * Type checking extension used when parameter scripts are statically compiled. Variables that are not declared
+ * in the script come from the script binding (parameters, jenkinsProject, etc), so they are resolved dynamically,
+ * and typed as Object.
+ */
+unresolvedVariable { var ->
+    makeDynamic(var)
+}
@@ -44,6 +44,19 @@ var UnoChoice = UnoChoice || (function($) {
     var instance = {};
     var SEPARATOR = '__LESEP__';
     var cascadeParameters = [];
+    // maximum number of responses kept in the choices cache
+    var CACHE_CAPACITY = 50;
+    // responses larger than this (in characters) are kept in memory only, not in the sessionStorage
+    var CACHE_MAX_STORED_LENGTH = 256 * 1024;
+    // calls rejected with a 429 are sent again up to this many times, waiting at least RETRY_DELAY ms, doubled
+    // on each retry, and at most MAX_RETRY_DELAY ms
+    var MAX_RETRIES = 5;
+    var RETRY_DELAY = 500;
+    var MAX_RETRY_DELAY = 30000;
+    // shown when the server returns only the first choices of a result that was too large
+    var TRUNCATED_WARNING = 'Too many choices, only the first ones are shown';
+    // lazy parameters are updated when they get this close to the visible part of the page
+    var LAZY_MARGIN = '200px';
     // Plug-in classes
     // --- Cascade Parameter
     /**
@@ -143,37 +156,26 @@ var UnoChoice = UnoChoice || (function($) {
      * this parameter references itself, we need to avoid updating it forever.</p>
      *
      * @param avoidRecursion boolean flag to decide whether we want to permit self-reference parameters or not
+     * @param depth number of revalidated responses that led to this update, see <code>fetchChoices</code>
      */
-    CascadeParameter.prototype.update = function(avoidRecursion) {
+    CascadeParameter.prototype.update = function(avoidRecursion, depth) {
+        if (this.waitsUntilVisible()) {
+            return;
+        }
         var parametersString = this.getReferencedParametersAsText(); // gets the array parameters, joined by , (e.g. a,b,c,d)
         console.log('Values retrieved from Referenced Parameters: ' + parametersString);
-        // Update the CascadeChoiceParameter Map of parameters
-        this.proxy.doUpdate(parametersString);
         // Now we get the updated choices, after the Groovy script is eval'd using the updated Map of parameters
         // The inner function is called with the response provided by Stapler. Then we update the HTML elements.
         var _self = this; // re-reference this to use within the inner function
         console.log('Calling Java server code to update HTML elements...');
-        this.proxy.getChoicesForUI(function (t) {
-            var choices = t.responseText;
+        this.fetchChoices('streamChoicesForUI', parametersString, depth || 0, function (choices) {
             console.log('Values returned from server: ' + choices);
-            var data = JSON.parse(choices);
-            var newValues = data[0];
-            var newKeys = data[1];
-            var selectedElements = new Array();
-            // filter selected elements and create a matrix for selection
-            // some elements may have key or values with the suffix :selected
-            // we want to remove these suffixes
-            for (var i = 0; i < newValues.length; i++) {
-                var newValue = String(newValues[i]);
-                if (newValue && newValue.endsWith(':selected')) {
-                    selectedElements.push(i);
-                    newValues[i] = newValues[i].substring(0, newValue.indexOf(':selected'));
-                }
-                var newKey = String(newKeys[i]);
-                if (newKey && typeof newKey == "string" && newKey.endsWith(':selected')) {
-                    newKeys[i] = newKeys[i].substring(0, newKey.indexOf(':selected'));
-                }
-            }
+            // the :selected suffixes have already been removed by the server
+            var data = decodeChoices(choices);
+            var newValues = data.values;
+            var newKeys = data.keys;
+            _self.setTruncated(data.truncated);
+            var i;
             if (_self.getFilterElement()) {
                 console.log('Updating values in filter array');
             }
@@ -195,7 +197,7 @@ var UnoChoice = UnoChoice || (function($) {
                         opt.text = entry;
                         opt.value = value;
                     }
-                    if (selectedElements.indexOf(i) >= 0) {
+                    if (data.isSelected(i)) {
                         opt.setAttribute('selected', 'selected');
                     }
                     parameterElement.add(opt, null);
@@ -240,7 +242,7 @@ var UnoChoice = UnoChoice || (function($) {
                             var input = document.createElement('input');
                             // <LABEL>
                             var label = document.createElement('label');
-                            if (selectedElements.indexOf(i) >= 0) {
+                            if (data.isSelected(i)) {
                                 input.setAttribute('checked', 'checked');
                             }
                             if (!entry instanceof String) {
@@ -293,7 +295,7 @@ var UnoChoice = UnoChoice || (function($) {
                             var label = document.createElement('label');
                             // <HIDDEN>
                             var hiddenValue = document.createElement('input');
-                            if (selectedElements.indexOf(i) >= 0) {
+                            if (data.isSelected(i)) {
                                 input.setAttribute('checked', 'checked');
                                 hiddenValue.setAttribute('name', 'value');
                             } else {
@@ -361,20 +363,122 @@ var UnoChoice = UnoChoice || (function($) {
         // var e = jQuery.Event('change', {parameterName: this.getParameterName()});
         // jQuery(this.getParameterElement()).trigger(e);
         if (!avoidRecursion) {
-            var otherCascadeParameters = cascadeParameters;
-            if (cascadeParameters && cascadeParameters.length > 0) {
-                for (var i = 0; i < cascadeParameters.length; i++) {
-                    var other = cascadeParameters[i];
-                    if (this.referencesMe(other)) {
-                        console.log('Updating ' + other.getParameterName() + ' from ' + this.getParameterName());
-                        other.update(true);
-                    }
-                }
-            }
+            this.updateReferencingParameters(depth);
         } else {
             console.log('Avoiding infinite loop due to recursion!');
         }
     }
+    /**
+     * Returns whether the update of a lazy parameter has to wait until it is visible. The parameter is then
+     * marked as stale, and updated once it is scrolled into view, or when the form is submitted.
+     *
+     * @since 2.2
+     * @return <code>true</code> if the parameter must not be updated now
+     */
+    CascadeParameter.prototype.waitsUntilVisible = function() {
+        if (!this.lazy || this.visible || flushing) {
+            return false;
+        }
+        console.log('Parameter ' + this.getParameterName() + ' is not visible, updating it later');
+        this.stale = true;
+        return true;
+    }
+    /**
+     * Updates the parameters that reference this parameter.
+     *
+     * @since 2.2
+     * @param depth number of revalidated responses that led to this update, see <code>fetchChoices</code>
+     */
+    CascadeParameter.prototype.updateReferencingParameters = function(depth) {
+        for (var i = 0; i < cascadeParameters.length; i++) {
+            var other = cascadeParameters[i];
+            if (this.referencesMe(other)) {
+                console.log('Updating ' + other.getParameterName() + ' from ' + this.getParameterName());
+                other.update(true, depth);
+            }
+        }
+    }
+    /**
+     * <p>Calls the proxy to update the referenced parameters values, and then calls the given method to retrieve
+     * the choices, which are passed to the <code>render</code> function.</p>
+     *
+     * <p>The responses are kept in the choices cache, by parameter and values of the referenced parameters. When
+     * the cache has a response for these values, it is rendered right away, and then revalidated in the
+     * background with its ETag. Only if the server returns something different it is rendered again, and the
+     * parameters that reference this parameter are updated, as they were computed from the cached response. This
+     * happens even when the update itself does not propagate, as on page load. A chain of revalidated responses
+     * longer than the number of parameters can only be a cycle of scripts that never return the same result, so
+     * it is not followed any further.</p>
+     *
+     * @since 2.2
+     * @param methodName proxy method that returns the choices
+     * @param parametersString values of the referenced parameters
+     * @param depth number of revalidated responses that led to this call
+     * @param render function that receives the response text
+     */
+    CascadeParameter.prototype.fetchChoices = function(methodName, parametersString, depth, render) {
+        var _self = this;
+        var key = window.location.pathname + SEPARATOR + this.getParameterName() + SEPARATOR + methodName;
+        var cached = choicesCache.get(key, parametersString);
+        // calls made for values that are no longer current are skipped
+        var sequence = this.fetchSequence = (this.fetchSequence || 0) + 1;
+        var call = function(onChange) {
+            if (sequence !== _self.fetchSequence) {
+                return;
+            }
+            // Update the Map of parameters
+            _self.proxy.doUpdate(parametersString);
+            var callback = function(t) {
+                if (t.notModified || sequence !== _self.fetchSequence) {
+                    return;
+                }
+                if (t.eTag) {
+                    choicesCache.put(key, parametersString, t.eTag, t.responseText);
+                }
+                onChange(t.responseText);
+            };
+            callback.validator = cached;
+            // a rejected call is sent again with the values it was computed for, which by then another call may
+            // have replaced on the server
+            callback.retry = function(send) {
+                if (sequence === _self.fetchSequence) {
+                    _self.proxy.doUpdate(parametersString);
+                    send();
+                }
+            };
+            _self.proxy[methodName](callback);
+        };
+        if (cached) {
+            console.log('Rendering cached response for ' + this.getParameterName());
+            render(cached.responseText);
+            setTimeout(function() {
+                call(function(responseText) {
+                    render(responseText);
+                    if (depth < cascadeParameters.length) {
+                        _self.updateReferencingParameters(depth + 1);
+                    }
+                });
+            }, 0);
+        } else {
+            call(render);
+        }
+    }
+    /**
+     * Shows a warning under the parameter when the server returned only the first choices of a result that was
+     * too large, and removes it otherwise.
+     *
+     * @since 2.2
+     * @param truncated whether the choices were truncated
+     */
+    CascadeParameter.prototype.setTruncated = function(truncated) {
+        var parameterDiv = jQuery(this.getParameterElement()).closest('div[name="parameter"]');
+        var warning = parameterDiv.find('.uno_choice_truncated');
+        if (!truncated) {
+            warning.remove();
+        } else if (warning.length == 0) {
+            jQuery('<div class="warning uno_choice_truncated"></div>').text(TRUNCATED_WARNING).appendTo(parameterDiv);
+        }
+    }
     /**
      * Returns <code>true</code> iff the given parameter is not null, and one of its
      * reference parameters is the same parameter as <code>this</code>. In other words,
@@ -472,53 +576,52 @@ var UnoChoice = UnoChoice || (function($) {
      * this parameter references itself, we need to avoid updating it forever.</p>
      *
      * @param avoidRecursion boolean flag to decide whether we want to permit self-reference parameters or not
+     * @param depth number of revalidated responses that led to this update, see <code>fetchChoices</code>
      */
-    DynamicReferenceParameter.prototype.update = function(avoidRecursion) {
+    DynamicReferenceParameter.prototype.update = function(avoidRecursion, depth) {
+        if (this.waitsUntilVisible()) {
+            return;
+        }
         var parametersString = this.getReferencedParametersAsText(); // gets the array parameters, joined by , (e.g. a,b,c,d)
+        var _self = this;
         console.log('Values retrieved from Referenced Parameters: ' + parametersString);
-        // Update the Map of parameters
-        this.proxy.doUpdate(parametersString);
         var parameterElement = this.getParameterElement();
         // Here depending on the HTML element we might need to call a method to return a Map of elements,
         // or maybe call a string to put as value in a INPUT.
         if (parameterElement.tagName == 'OL') { // handle OL's
             console.log('Calling Java server code to update HTML elements...');
-            this.proxy.getChoicesForUI(function (t) {
+            this.fetchChoices('streamChoicesForUI', parametersString, depth || 0, function (choices) {
                 jQuery(parameterElement).empty(); // remove all children elements
-                var choices = t.responseText;
                 console.log('Values returned from server: ' + choices);
-                var data = JSON.parse(choices);
-                var newValues = data[0];
-                var newKeys = data[1];
-                for (i = 0; i < newValues.length; ++i) {
+                var data = decodeChoices(choices);
+                var newValues = data.values;
+                _self.setTruncated(data.truncated);
+                for (var i = 0; i < newValues.length; ++i) {
                     var li = document.createElement('li');
                     li.innerHTML = newValues[i];
                     parameterElement.appendChild(li); // append new elements
                 }
             });
         } else if (parameterElement.tagName == 'UL') { // handle OL's
-            jQuery(parameterElement).empty(); // remove all children elements
             console.log('Calling Java server code to update HTML elements...');
-            this.proxy.getChoicesForUI(function (t) {
-                var choices = t.responseText;
+            this.fetchChoices('streamChoicesForUI', parametersString, depth || 0, function (choices) {
+                jQuery(parameterElement).empty(); // remove all children elements
                 console.log('Values returned from server: ' + choices);
-                var data = JSON.parse(choices);
-                var newValues = data[0];
-                var newKeys = data[1];
-                for (i = 0; i < newValues.length; ++i) {
+                var data = decodeChoices(choices);
+                var newValues = data.values;
+                _self.setTruncated(data.truncated);
+                for (var i = 0; i < newValues.length; ++i) {
                     var li = document.createElement('li');
                     li.innerHTML = newValues[i];
                     parameterElement.appendChild(li); // append new elements
                 }
             });
         } else if (parameterElement.id.indexOf('inputElement_') > -1) { // handle input text boxes
-            this.proxy.getChoicesAsStringForUI(function (t) {
-                var options = t.responseText;
+            this.fetchChoices('getChoicesAsStringForUI', parametersString, depth || 0, function (options) {
                 parameterElement.value = options;
             });
         } else if (parameterElement.id.indexOf('formattedHtml_') > -1) { // handle formatted HTML
-            this.proxy.getChoicesAsStringForUI(function (t) {
-                var options = t.responseText;
+            this.fetchChoices('getChoicesAsStringForUI', parametersString, depth || 0, function (options) {
                 parameterElement.innerHTML = JSON.parse(options);
             });
         }
@@ -527,19 +630,466 @@ var UnoChoice = UnoChoice || (function($) {
         // var e = jQuery.Event('change', {parameterName: this.getParameterName()});
         // jQuery(this.getParameterElement()).trigger(e);
         if (!avoidRecursion) {
-            var otherCascadeParameters = cascadeParameters;
-            if (cascadeParameters && cascadeParameters.length > 0) {
-                for (var i = 0; i < cascadeParameters.length; i++) {
-                    var other = cascadeParameters[i];
-                    if (this.referencesMe(other)) {
-                        console.log('Updating ' + other.getParameterName() + ' from ' + this.getParameterName());
-                        other.update(true);
+            this.updateReferencingParameters(depth);
+        } else {
+            console.log('Avoiding infinite loop due to recursion!');
+        }
+    }
+    // --- Choices Cache
+    /**
+     * <p>A bounded LRU cache of the choices returned by the server, kept in memory and in the
+     * <code>sessionStorage</code>, so that it survives page reloads and going back to the build form.</p>
+     *
+     * <p>Entries are stored by a key (page, parameter and method), and the hash of the values of the referenced
+     * parameters. Each entry also keeps the values, so a hash collision is never returned, and the ETag that is
+     * used to revalidate it.</p>
+     *
+     * @since 2.2
+     * @param capacity maximum number of entries
+     * @param storage a <code>Storage</code>, or <code>null</code> to keep the entries in memory only
+     * @param prefix prefix of the items in the storage
+     */
+    /* public */ function ChoicesCache(capacity, storage, prefix) {
+        this.capacity = capacity;
+        this.storage = storage;
+        this.prefix = prefix;
+        this.entries = {};
+        // least recently used first
+        this.order = [];
+        if (storage) {
+            try {
+                this.order = JSON.parse(storage.getItem(prefix + 'index')) || [];
+            } catch (e) {
+                this.order = [];
+            }
+        }
+    }
+    /**
+     * Gets an entry, marking it as the most recently used.
+     *
+     * @param key entry key
+     * @param input values of the referenced parameters
+     * @return <code>Object</code> with the <code>eTag</code> and the <code>responseText</code>, or
+     * <code>undefined</code>
+     */
+    ChoicesCache.prototype.get = function(key, input) {
+        var id = key + SEPARATOR + hashCode(input);
+        var entry = this.entries[id];
+        if (entry === undefined && this.storage && this.order.indexOf(id) >= 0) {
+            try {
+                entry = JSON.parse(this.storage.getItem(this.prefix + id)) || undefined;
+            } catch (e) {
+                entry = undefined;
+            }
+        }
+        if (entry === undefined || entry.input !== input) {
+            return undefined;
+        }
+        this.entries[id] = entry;
+        this.touch(id);
+        return entry;
+    }
+    /**
+     * Puts an entry, evicting the least recently used entries above the capacity.
+     *
+     * @param key entry key
+     * @param input values of the referenced parameters
+     * @param eTag ETag of the response
+     * @param responseText response
+     */
+    ChoicesCache.prototype.put = function(key, input, eTag, responseText) {
+        var id = key + SEPARATOR + hashCode(input);
+        var entry = {input: input, eTag: eTag, responseText: responseText};
+        this.entries[id] = entry;
+        this.touch(id);
+        while (this.order.length > this.capacity) {
+            this.remove(this.order[0]);
+        }
+        if (this.storage) {
+            try {
+                if (responseText.length <= CACHE_MAX_STORED_LENGTH) {
+                    this.storage.setItem(this.prefix + id, JSON.stringify(entry));
+                }
+                this.storage.setItem(this.prefix + 'index', JSON.stringify(this.order));
+            } catch (e) {
+                // quota exceeded, or storage disabled. The memory cache still works
+                console.log('Failed to store choices in the session storage: ' + e);
+            }
+        }
+    }
+    /**
+     * Returns the number of entries.
+     *
+     * @return <code>int</code> number of entries
+     */
+    ChoicesCache.prototype.size = function() {
+        return this.order.length;
+    }
+    ChoicesCache.prototype.touch = function(id) {
+        var index = this.order.indexOf(id);
+        if (index >= 0) {
+            this.order.splice(index, 1);
+        }
+        this.order.push(id);
+    }
+    ChoicesCache.prototype.remove = function(id) {
+        var index = this.order.indexOf(id);
+        if (index >= 0) {
+            this.order.splice(index, 1);
+        }
+        delete this.entries[id];
+        if (this.storage) {
+            try {
+                this.storage.removeItem(this.prefix + id);
+            } catch (e) {
+                // ignore, it will be overwritten or dropped with the session
+            }
+        }
+    }
+    /**
+     * Returns the sessionStorage, or <code>null</code> if the browser does not have it or does not allow it.
+     */
+    function getSessionStorage() {
+        try {
+            return window.sessionStorage || null;
+        } catch (e) {
+            return null;
+        }
+    }
+    var choicesCache = new ChoicesCache(CACHE_CAPACITY, getSessionStorage(), 'unochoice.choices.');
+    // --- Parameter Index
+    // parameter value elements by parameter name
+    var parameterElements = {};
+    // number of parameter DIV's in the page when they were last indexed
+    var indexedCount = 0;
+    /**
+     * <p>Finds the HTML element that holds the value of a parameter, given the parameter name.</p>
+     *
+     * <p>The parameter DIV's of the page are indexed by name once. Since the scripts run while the page is
+     * still loading, when a name is not found the DIV's added since the last call are indexed too.</p>
+     *
+     * @since 2.2
+     * @param name parameter name
+     * @return HTML element, or <code>null</code> if there is no parameter with this name
+     */
+    /* public */ function findParameterElement(name) {
+        var element = parameterElements[name];
+        if (element !== undefined && jQuery.contains(document.documentElement, element)) {
+            return element;
+        }
+        var divs = document.querySelectorAll('div[name="parameter"]');
+        if (element !== undefined) {
+            // removed from the page
+            delete parameterElements[name];
+            indexParameterElements(divs);
+        } else if (divs.length != indexedCount) {
+            indexParameterElements(divs);
+        }
+        element = parameterElements[name];
+        return element !== undefined ? element : null;
+    }
+    /**
+     * Indexes the parameter DIV's that have not been indexed yet.
+     *
+     * @param divs parameter DIV's
+     */
+    function indexParameterElements(divs) {
+        for (var i = 0; i < divs.length; i++) {
+            var div = divs[i];
+            if (div.unoChoiceIndexed) {
+                continue;
+            }
+            div.unoChoiceIndexed = true;
+            var hiddenName = div.querySelector('input[name="name"]');
+            if (!hiddenName) {
+                continue;
+            }
+            var children = div.children;
+            for (var k = 0; k < children.length; ++k) {
+                var child = children[k];
+                if (child.getAttribute('name') == 'value' || child.tagName == 'DIV' || child.getAttribute('type') == 'file') {
+                    parameterElements[hiddenName.value] = child;
+                    break;
+                }
+            }
+        }
+        indexedCount = divs.length;
+    }
+    // --- Bootstrap
+    // Stapler proxies by URL
+    var proxies = {};
+    // watches the page for new parameters
+    var observer = null;
+    /**
+     * <p>Creates the parameters of the page. Each cascade or dynamic reference parameter DIV has a
+     * <code>data-uno-choice</code> attribute, with the JSON configuration of the parameter.</p>
+     *
+     * <p>First all the parameters are created, then their referenced parameters are bound, and finally they are
+     * updated once, in an order where each parameter is updated after the parameters it references.</p>
+     *
+     * <p>Called when the page is loaded. Parameters that have already been created are skipped, so it can be
+     * called again if new parameters are added to the page.</p>
+     *
+     * @since 2.2
+     */
+    /* public */ function bootstrap() {
+        var created = [];
+        var configs = [];
+        var divs = document.querySelectorAll('div[data-uno-choice]');
+        for (var i = 0; i < divs.length; i++) {
+            var div = divs[i];
+            if (div.unoChoiceCreated) {
+                continue;
+            }
+            div.unoChoiceCreated = true;
+            var config;
+            try {
+                config = JSON.parse(div.getAttribute('data-uno-choice'));
+            } catch (e) {
+                console.log('Parameter error: Invalid configuration in [' + div.id + ']: ' + e);
+                continue;
+            }
+            var parameter = createParameter(div, config);
+            if (parameter) {
+                created.push(parameter);
+                configs.push(config);
+            }
+        }
+        for (var j = 0; j < created.length; j++) {
+            var referencedParameters = configs[j].referencedParameters;
+            for (var k = 0; k < referencedParameters.length; k++) {
+                var parameterElement = findParameterElement(referencedParameters[k]);
+                new ReferencedParameter(referencedParameters[k], parameterElement, created[j]);
+            }
+        }
+        refresh(created);
+    }
+    /**
+     * <p>Creates the parameters added to the page after it was loaded, such as the parameters in the HTML of a
+     * dynamic reference parameter, or in sections of the form added later. The bootstrap is called again, once
+     * per batch of changes, whenever an element with a <code>data-uno-choice</code> attribute is added.</p>
+     *
+     * <p>Browsers without <code>MutationObserver</code> only create the parameters of the page as loaded, but the
+     * bootstrap can still be called again.</p>
+     *
+     * @since 2.2
+     */
+    /* public */ function observe() {
+        if (!window.MutationObserver || observer) {
+            return;
+        }
+        var scheduled = false;
+        var containsParameters = function(node) {
+            return node.nodeType == 1 && (node.hasAttribute('data-uno-choice') ||
+                    node.querySelector('div[data-uno-choice]') !== null);
+        };
+        observer = new MutationObserver(function(mutations) {
+            if (scheduled) {
+                return;
+            }
+            for (var i = 0; i < mutations.length; i++) {
+                var addedNodes = mutations[i].addedNodes;
+                for (var j = 0; j < addedNodes.length; j++) {
+                    if (containsParameters(addedNodes[j])) {
+                        scheduled = true;
+                        setTimeout(function() {
+                            scheduled = false;
+                            bootstrap();
+                        }, 0);
+                        return;
                     }
                 }
             }
+        });
+        observer.observe(document.body, {childList: true, subtree: true});
+    }
+    /**
+     * Creates a parameter from its DIV and configuration.
+     *
+     * @param div parameter DIV
+     * @param config parameter configuration
+     * @return the <code>CascadeParameter</code> or <code>DynamicReferenceParameter</code>, or <code>null</code>
+     * if the parameter element is missing
+     */
+    function createParameter(div, config) {
+        var proxy = proxies[config.proxy.url];
+        if (!proxy) {
+            proxy = proxies[config.proxy.url] = makeStaplerProxy2(config.proxy.url, config.proxy.crumb, config.proxy.methods);
+        }
+        var parentDiv = jQuery(div);
+        var parameterHtmlElement = null;
+        var parameter;
+        if (config.type == 'dynamic') {
+            // if the parameter class has been set to hidden, then we hide it now
+            if (div.getAttribute('class') == 'hidden_uno_choice_parameter') {
+                var parentTbody = parentDiv.parents('tbody');
+                if (parentTbody && parentTbody.length > 0) {
+                    jQuery(parentTbody.get(0)).attr('style', 'visibility:hidden;position:absolute;');
+                }
+            }
+            for (var i = 0; i < div.children.length; i++) {
+                var child = div.children[i];
+                if (child.getAttribute('name') == 'value' || child.id.indexOf('ecp_') > -1 ||
+                        child.id.indexOf('inputElement_') > -1 || child.id.indexOf('formattedHtml_') > -1 ||
+                        child.id.indexOf('imageGallery_') > -1) {
+                    parameterHtmlElement = child;
+                    break;
+                }
+            }
+            if (!parameterHtmlElement) {
+                console.log('Parameter error: Missing parameter [' + div.id + '] HTML element!');
+                return null;
+            }
+            parameter = new DynamicReferenceParameter(config.name, parameterHtmlElement, proxy);
+            // the formatted HTML of a deferred parameter is only fetched once the page has been painted
+            parameter.deferred = config.deferred === true;
         } else {
-            console.log('Avoiding infinite loop due to recursion!');
+            parameterHtmlElement = parentDiv.find('DIV').get(0);
+            if (!parameterHtmlElement) {
+                console.log('Could not find element by name, perhaps it is a DIV?');
+                parameterHtmlElement = parentDiv.find('*[name="value"]').get(0);
+            }
+            if (!parameterHtmlElement) {
+                console.log('Parameter error: Missing parameter [' + div.id + '] HTML element!');
+                return null;
+            }
+            parameter = new CascadeParameter(config.name, parameterHtmlElement, config.randomName, proxy);
+            if (config.filterable) {
+                var filterHtmlElement = parentDiv.find('.uno_choice_filter').get(0);
+                if (filterHtmlElement) {
+                    parameter.setFilterElement(new FilterElement(parameterHtmlElement, filterHtmlElement, config.filterLength));
+                } else {
+                    console.log('Filter error: Missing filter element!');
+                }
+            }
+        }
+        if (config.lazy === true && lazyObserver) {
+            parameter.lazy = true;
+            div.unoChoiceParameter = parameter;
+            lazyObserver.observe(div);
+        }
+        cascadeParameters.push(parameter);
+        return parameter;
+    }
+    /**
+     * Updates each parameter once, after the parameters it references. Parameters in a reference cycle are
+     * updated in the order they appear in the page. Deferred parameters are updated last, after the page is
+     * painted.
+     *
+     * @param parameters parameters to update
+     */
+    function refresh(parameters) {
+        var pending = parameters.slice(0);
+        var deferred = [];
+        var waitsForPending = function(parameter) {
+            for (var i = 0; i < pending.length; i++) {
+                if (pending[i] !== parameter && pending[i].referencesMe(parameter)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+        while (pending.length > 0) {
+            var next = 0;
+            for (var i = 0; i < pending.length; i++) {
+                if (!waitsForPending(pending[i])) {
+                    next = i;
+                    break;
+                }
+            }
+            var parameter = pending.splice(next, 1)[0];
+            if (parameter.deferred && !flushing) {
+                deferred.push(parameter);
+                continue;
+            }
+            console.log('Updating cascade of parameter [' + parameter.getParameterName() + '] ...');
+            parameter.update(true);
+        }
+        if (deferred.length > 0) {
+            afterPaint(function() {
+                for (var i = 0; i < deferred.length; i++) {
+                    console.log('Updating deferred parameter [' + deferred[i].getParameterName() + '] ...');
+                    deferred[i].update(true);
+                }
+            });
+        }
+    }
+    /**
+     * Calls a function once the browser has painted the page. The animation frame runs right before the next
+     * paint, so the timeout scheduled from it runs after that paint.
+     *
+     * @param callback function to call
+     */
+    function afterPaint(callback) {
+        if (window.requestAnimationFrame) {
+            window.requestAnimationFrame(function() {
+                setTimeout(callback, 0);
+            });
+        } else {
+            setTimeout(callback, 0);
+        }
+    }
+    // --- Lazy parameters
+    // whether the stale lazy parameters are being updated before the form is submitted
+    var flushing = false;
+    /**
+     * Watches the DIVs of the lazy parameters, and updates the stale ones when they become visible. Updates are
+     * propagated, as the parameters that reference them were not updated either.
+     *
+     * @return the <code>IntersectionObserver</code>, or <code>null</code> if the browser does not support it, in
+     * which case lazy parameters are updated as usual
+     */
+    function createLazyObserver() {
+        if (!window.IntersectionObserver) {
+            return null;
+        }
+        return new IntersectionObserver(function(entries) {
+            for (var i = 0; i < entries.length; i++) {
+                var parameter = entries[i].target.unoChoiceParameter;
+                parameter.visible = entries[i].isIntersecting;
+                if (parameter.visible && parameter.stale) {
+                    parameter.stale = false;
+                    console.log('Updating lazy parameter [' + parameter.getParameterName() + '] ...');
+                    parameter.update(false);
+                }
+            }
+        }, {rootMargin: LAZY_MARGIN});
+    }
+    var lazyObserver = createLazyObserver();
+    /**
+     * Updates the stale lazy parameters, and the parameters that reference them, before the form is submitted.
+     * It listens in the capture phase, so it runs before Jenkins serializes the form. The proxy calls are
+     * synchronous, so the values are up to date by then.
+     */
+    function flushLazyParameters() {
+        var parameters = [];
+        for (var i = 0; i < cascadeParameters.length; i++) {
+            if (cascadeParameters[i].stale) {
+                cascadeParameters[i].stale = false;
+                parameters.push(cascadeParameters[i]);
+            }
+        }
+        // the parameters that reference a stale parameter were computed from its old value
+        for (var j = 0; j < parameters.length; j++) {
+            for (var k = 0; k < cascadeParameters.length; k++) {
+                var other = cascadeParameters[k];
+                if (parameters[j].referencesMe(other) && parameters.indexOf(other) < 0) {
+                    parameters.push(other);
+                }
+            }
         }
+        if (parameters.length == 0) {
+            return;
+        }
+        flushing = true;
+        try {
+            refresh(parameters);
+        } finally {
+            flushing = false;
+        }
+    }
+    if (lazyObserver) {
+        document.addEventListener('submit', flushLazyParameters, true);
     }
     // --- Filter Element
     /**
@@ -891,7 +1441,53 @@ var UnoChoice = UnoChoice || (function($) {
         }
         return result;
     }
+    /**
+     * <p>Decodes the choices sent by the server in the compact format.</p>
+     *
+     * <p>The payload has a single array with the key and the label of each choice (<code>c</code>), and a bitmap
+     * with the selected choices (<code>s</code>), where the bit <code>i % 32</code> of the word
+     * <code>i / 32</code> is set when the choice <code>i</code> is selected.</p>
+     *
+     * @param responseText JSON returned by the server
+     * @return <code>Object</code> with the arrays of <code>keys</code> and <code>values</code>, and an
+     * <code>isSelected(index)</code> function
+     */
+    /* public */ function decodeChoices(responseText) {
+        var data = JSON.parse(responseText);
+        var pairs = data.c;
+        var bitmap = data.s;
+        var keys = new Array(pairs.length / 2);
+        var values = new Array(pairs.length / 2);
+        for (var i = 0, j = 0; j < pairs.length; i++, j += 2) {
+            keys[i] = pairs[j];
+            values[i] = pairs[j + 1];
+        }
+        return {
+            keys: keys,
+            values: values,
+            truncated: data.t === 1,
+            isSelected: function(index) {
+                var word = bitmap[index >>> 5];
+                return word !== undefined && ((word >>> (index & 31)) & 1) === 1;
+            }
+        };
+    }
     // Basic utility methods
+    /**
+     * Computes a 32-bit FNV-1a hash of a text.
+     *
+     * @param text string
+     * @return <code>String</code> the hash, in hexadecimal
+     */
+    function hashCode(text) {
+        var hash = 0x811c9dc5;
+        for (var i = 0; i < text.length; i++) {
+            hash ^= text.charCodeAt(i);
+            // hash * 16777619, without losing the lower 32 bits
+            hash += (hash << 1) + (hash << 4) + (hash << 7) + (hash << 8) + (hash << 24);
+        }
+        return (hash >>> 0).toString(16);
+    }
     /**
      * Utility method to check if a text ends with a given pattern.
      *
@@ -908,6 +1504,16 @@ var UnoChoice = UnoChoice || (function($) {
      * <p>This function is the same as makeStaplerProxy available in Jenkins core, but executes calls
      * <strong>synchronously</strong>. Since many parameters must be filled only after other parameters have been
      * updated, calling Jenkins methods assynchronously causes several unpredictable errors.</p>
+     *
+     * <p>It also sends conditional requests. If the callback has a <code>validator</code> property, with the
+     * <code>eTag</code> and <code>responseText</code> of a previous response, the ETag is sent in the
+     * If-None-Match header. When the server replies with a 304, the callback receives the response we already
+     * have, with <code>notModified</code> set. Otherwise it receives the new response and its <code>eTag</code>.</p>
+     *
+     * <p>Calls rejected with a 429, when the user requests too many evaluations, are sent again later, after the
+     * delay in the Retry-After header of the response, backing off exponentially. If the callback has a
+     * <code>retry</code> property, it is called instead with a function that sends the call again, so that it can
+     * first repeat the calls this one depends on, or drop it.</p>
      */
     /* public */ function makeStaplerProxy2(url, crumb, methods) {
         if (url.substring(url.length - 1) !== '/') url+='/';
@@ -930,41 +1536,87 @@ var UnoChoice = UnoChoice || (function($) {
                 var a = [];
                 for (var i=0; i<args.length-(callback!=null?1:0); i++)
                     a.push(args[i]);
-                if(window.jQuery === window.$) { //Is jQuery the active framework?
-                    $.ajax({
-                        type: "POST",
-                        url: url+methodName,
-                        data: stringify(a),
-                        contentType: 'application/x-stapler-method-invocation;charset=UTF-8',
-                        headers: {'Crumb':crumb},
-                        dataType: "json",
-                        async: "false", // Here's the juice
-                        success: function(data, textStatus, jqXHR) {
-                            if (callback!=null) {
-                                var t = {};
-                                t.responseObject = function() {
-                                    return data;
-                                };
-                                callback(t);
-                            }
+                var validator = callback != null ? callback.validator : null;
+                var headers = {'Content-type':'application/x-stapler-method-invocation;charset=UTF-8','Crumb':crumb};
+                if (validator) {
+                    headers['If-None-Match'] = validator.eTag;
+                }
+                var respond = function(status, responseText, eTag) {
+                    if (callback == null) {
+                        return;
+                    }
+                    var notModified = status == 304 && validator;
+                    if (notModified) {
+                        responseText = validator.responseText;
+                        eTag = validator.eTag;
+                    }
+                    callback({
+                        status: 200,
+                        notModified: notModified ? true : false,
+                        eTag: eTag,
+                        responseText: responseText,
+                        responseObject: function() {
+                            return JSON.parse(responseText);
                         }
                     });
-                } else { //Assume prototype should work
-                    new Ajax.Request(url+methodName, {
-                        method: 'post',
-                        requestHeaders: {'Content-type':'application/x-stapler-method-invocation;charset=UTF-8','Crumb':crumb},
-                        postBody: stringify(a),
-                        asynchronous: false, // and here
-                        onSuccess: function(t) {
-                            if (callback!=null) {
-                                t.responseObject = function() {
-                                    return eval('('+this.responseText+')');
-                                };
-                                callback(t);
-                            }
+                };
+                // rejected calls are sent again after the delay asked by the server, backing off exponentially
+                var retry = function(attempt, retryAfter) {
+                    if (attempt >= MAX_RETRIES) {
+                        console.log('Too many requests for ' + methodName + ', giving up');
+                        return;
+                    }
+                    var delay = Math.min(MAX_RETRY_DELAY, Math.max((parseInt(retryAfter, 10) || 0) * 1000,
+                            RETRY_DELAY * Math.pow(2, attempt)));
+                    console.log('Too many requests for ' + methodName + ', retrying in ' + delay + 'ms');
+                    setTimeout(function() {
+                        var resend = function() {
+                            send(attempt + 1);
+                        };
+                        if (callback != null && typeof(callback.retry) == 'function') {
+                            callback.retry(resend);
+                        } else {
+                            resend();
                         }
-                    });
-                }
+                    }, delay + Math.floor(Math.random() * RETRY_DELAY));
+                };
+                var send = function(attempt) {
+                    if(window.jQuery === window.$) { //Is jQuery the active framework?
+                        $.ajax({
+                            type: "POST",
+                            url: url+methodName,
+                            data: stringify(a),
+                            contentType: 'application/x-stapler-method-invocation;charset=UTF-8',
+                            headers: headers,
+                            dataType: "text",
+                            async: "false", // Here's the juice
+                            success: function(data, textStatus, jqXHR) {
+                                respond(jqXHR.status, jqXHR.responseText, jqXHR.getResponseHeader('ETag'));
+                            },
+                            error: function(jqXHR) {
+                                if (jqXHR.status == 429) {
+                                    retry(attempt, jqXHR.getResponseHeader('Retry-After'));
+                                }
+                            }
+                        });
+                    } else { //Assume prototype should work
+                        var onSuccess = function(t) {
+                            respond(t.status, t.responseText, t.getHeader('ETag'));
+                        };
+                        new Ajax.Request(url+methodName, {
+                            method: 'post',
+                            requestHeaders: headers,
+                            postBody: stringify(a),
+                            asynchronous: false, // and here
+                            onSuccess: onSuccess,
+                            on304: onSuccess,
+                            on429: function(t) {
+                                retry(attempt, t.getHeader('Retry-After'));
+                            }
+                        });
+                    }
+                };
+                send(0);
             }
         };
         for(var mi = 0; mi < methods.length; mi++) {
@@ -976,11 +1628,22 @@ var UnoChoice = UnoChoice || (function($) {
     //instance.endsWith = endsWith;
     instance.fakeSelectRadioButton = fakeSelectRadioButton;
     instance.getParameterValue = getParameterValue;
+    instance.decodeChoices = decodeChoices;
+    instance.findParameterElement = findParameterElement;
+    instance.ChoicesCache = ChoicesCache;
+    instance.choicesCache = choicesCache;
     instance.CascadeParameter = CascadeParameter;
     instance.DynamicReferenceParameter = DynamicReferenceParameter;
     instance.ReferencedParameter = ReferencedParameter;
     instance.FilterElement = FilterElement;
     instance.makeStaplerProxy2 = makeStaplerProxy2;
+    instance.bootstrap = bootstrap;
+    instance.observe = observe;
     instance.cascadeParameters = cascadeParameters;
     return instance;
 })(jQuery);
+// Creates the parameters once the page has been loaded, and those added to it later
+jQuery(function() {
+    UnoChoice.bootstrap();
+    UnoChoice.observe();
+});
@@ -25,9 +25,12 @@
 package org.biouno.unochoice;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -39,8 +42,18 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.JenkinsRule.WebClient;
 import org.kohsuke.stapler.HttpResponses;
 
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.util.FormValidation;
+import net.sf.json.JSONObject;
+
 public class TestCascadeChoiceParameter {
 
     private final String SCRIPT = "return ['a', 'b']";
@@ -103,4 +116,73 @@ public class TestCascadeChoiceParameter {
         assertEquals(Arrays.asList("param001", "param002"), Arrays.asList(param.getReferencedParametersAsArray()));
     }
 
+    @Test
+    public void testUnusedReferencedParameters() {
+        String text = "return [COUNTRY + '/' + CITY]";
+        ScriptApproval.get().preapprove(text, GroovyLanguage.get());
+        GroovyScript script = new GroovyScript(new SecureGroovyScript(text, Boolean.FALSE, null),
+                new SecureGroovyScript(FALLBACK_SCRIPT, Boolean.FALSE, null));
+        CascadeChoiceParameter param = new CascadeChoiceParameter("param000", "description", "some-random-name",
+                script, CascadeChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, "COUNTRY, CITY, BRANCH", false, 0);
+        assertEquals(Arrays.asList("BRANCH"), param.getUnusedReferencedParameters());
+    }
+
+    @Test
+    public void testUnapprovedScriptsAreNotAnalysed() throws Exception {
+        // an AST transformation that runs while the script is compiled
+        String text = "@groovy.transform.ASTTest(value={ System.setProperty('unochoice.asttest', 'executed') })\n"
+                + "class Probe {}\n"
+                + "return [COUNTRY]";
+        System.clearProperty("unochoice.asttest");
+        for (boolean sandbox : new boolean[] { true, false }) {
+            GroovyScript script = new GroovyScript(new SecureGroovyScript(text, sandbox, null), null);
+            CascadeChoiceParameter param = new CascadeChoiceParameter("param000", "description",
+                    "some-random-name", script, CascadeChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT,
+                    "COUNTRY, BRANCH", false, 0);
+            param.setDropUnusedReferences(true);
+            FreeStyleProject project = j.createFreeStyleProject();
+            project.addProperty(new ParametersDefinitionProperty(param));
+            // rendering the build form must not compile the script, so every referenced parameter is kept
+            WebClient wc = j.createWebClient();
+            wc.getOptions().setJavaScriptEnabled(false);
+            HtmlPage page = wc.goTo(project.getUrl() + "build?delay=0sec");
+            HtmlElement div = page.getFirstByXPath("//div[@data-uno-choice]");
+            assertEquals(Arrays.asList("COUNTRY", "BRANCH"), JSONObject.fromObject(div.getAttribute("data-uno-choice"))
+                    .getJSONArray("referencedParameters"));
+            assertNull(script.getReadVariables());
+            assertNull(System.getProperty("unochoice.asttest"));
+        }
+    }
+
+    @Test
+    public void testCheckReferencedParameters() {
+        UnoChoiceParameterDescriptor descriptor = j.jenkins.getDescriptorByType(
+                CascadeChoiceParameter.DescriptImpl.class);
+        String script = "return [COUNTRY + '/' + CITY]";
+        FormValidation validation = descriptor.doCheckReferencedParameters(null, "COUNTRY, CITY, BRANCH", script);
+        assertEquals(FormValidation.Kind.WARNING, validation.kind);
+        assertTrue(validation.getMessage().contains("BRANCH"));
+        assertEquals(FormValidation.Kind.OK,
+                descriptor.doCheckReferencedParameters(null, "COUNTRY, CITY", script).kind);
+    }
+
+    @Test
+    public void testLazy() throws Exception {
+        GroovyScript script = new GroovyScript(new SecureGroovyScript(SCRIPT, Boolean.FALSE, null),
+                new SecureGroovyScript(FALLBACK_SCRIPT, Boolean.FALSE, null));
+        CascadeChoiceParameter param = new CascadeChoiceParameter("param000", "description", "some-random-name", script,
+                CascadeChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, "param001", false, 0);
+        assertFalse(param.isLazy());
+        param.setLazy(true);
+
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.addProperty(new ParametersDefinitionProperty(Collections.<ParameterDefinition>singletonList(param)));
+        WebClient wc = j.createWebClient();
+        wc.getOptions().setJavaScriptEnabled(false);
+        HtmlPage page = wc.goTo(project.getUrl() + "build?delay=0sec");
+
+        HtmlElement div = page.getFirstByXPath("//div[@data-uno-choice]");
+        assertTrue(JSONObject.fromObject(div.getAttribute("data-uno-choice")).getBoolean("lazy"));
+    }
+
 }
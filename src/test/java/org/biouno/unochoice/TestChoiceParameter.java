@@ -25,9 +25,19 @@
 package org.biouno.unochoice;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Map;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 import org.biouno.unochoice.model.GroovyScript;
+import org.biouno.unochoice.util.JobIndex;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
 import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyLanguage;
@@ -35,6 +45,15 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
+import org.jvnet.hudson.test.MockQueueItemAuthenticator;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.util.FormValidation;
+import jenkins.security.QueueItemAuthenticatorConfiguration;
 
 public class TestChoiceParameter {
 
@@ -65,4 +84,162 @@ public class TestChoiceParameter {
         assertTrue(param.getFilterable());
         assertEquals(Integer.valueOf(5), param.getFilterLength());
     }
+
+    @Test
+    public void testSharedWithOtherJobs() throws Exception {
+        final String randomScript = "return [java.util.UUID.randomUUID().toString()]";
+        final String projectScript = "return [jenkinsProject.fullName]";
+        ScriptApproval.get().preapprove(randomScript, GroovyLanguage.get());
+        ScriptApproval.get().preapprove(projectScript, GroovyLanguage.get());
+        MockFolder folder = j.createFolder("multibranch");
+        ChoiceParameter[] random = new ChoiceParameter[2];
+        ChoiceParameter[] project = new ChoiceParameter[2];
+        for (int i = 0; i < 2; i++) {
+            random[i] = new ChoiceParameter("random", "description", "random-" + i,
+                    new GroovyScript(new SecureGroovyScript(randomScript, Boolean.FALSE, null), null),
+                    ChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, false, 0);
+            random[i].setShared(true);
+            project[i] = new ChoiceParameter("project", "description", "project-" + i,
+                    new GroovyScript(new SecureGroovyScript(projectScript, Boolean.FALSE, null), null),
+                    ChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, false, 0);
+            project[i].setShared(true);
+            FreeStyleProject branch = folder.createProject(FreeStyleProject.class, "branch" + i);
+            branch.addProperty(new ParametersDefinitionProperty(random[i], project[i]));
+        }
+        // same script and no job variables, so the result of the first branch is reused by the second one
+        assertEquals(random[0].getChoices(), random[1].getChoices());
+        // scripts that use the job variables are evaluated for each job
+        assertEquals("[multibranch/branch0]", project[0].getChoices().values().toString());
+        assertEquals("[multibranch/branch1]", project[1].getChoices().values().toString());
+    }
+
+    @Test
+    public void testRefreshSchedule() throws Exception {
+        final String randomScript = "return [java.util.UUID.randomUUID().toString()]";
+        ScriptApproval.get().preapprove(randomScript, GroovyLanguage.get());
+        FreeStyleProject project = j.createFreeStyleProject("scheduled");
+        ChoiceParameter param = new ChoiceParameter("param000", "description", "some-random-name",
+                new GroovyScript(new SecureGroovyScript(randomScript, Boolean.FALSE, null), null),
+                ChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, false, 0);
+        param.setRefreshSchedule("H * * * *");
+        project.addProperty(new ParametersDefinitionProperty(param));
+        runBuildsAs(project, "alice");
+        // evaluated for each request, and not kept, until it is refreshed in the background
+        assertNotEquals(param.getChoices(), param.getChoices());
+        ScheduledRefresh.refresh(param, project);
+        Map<Object, Object> choices = param.getChoices();
+        // served from memory until the next refresh
+        assertEquals(choices, param.getChoices());
+        ScheduledRefresh.refresh(param, project);
+        assertNotEquals(choices, param.getChoices());
+    }
+
+    @Test
+    public void testRefreshScheduleIsNotEvaluatedAsSystem() throws Exception {
+        final String userScript = "return [jenkins.model.Jenkins.getAuthentication().getName()]";
+        ScriptApproval.get().preapprove(userScript, GroovyLanguage.get());
+        FreeStyleProject project = j.createFreeStyleProject("scheduled");
+        ChoiceParameter param = new ChoiceParameter("param000", "description", "some-random-name",
+                new GroovyScript(new SecureGroovyScript(userScript, Boolean.FALSE, null), null),
+                ChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, false, 0);
+        param.setRefreshSchedule("H * * * *");
+        project.addProperty(new ParametersDefinitionProperty(param));
+        UnoChoiceParameterDescriptor descriptor = j.jenkins.getDescriptorByType(
+                ChoiceParameter.DescriptImpl.class);
+
+        // results are shown to every user, so without an identity for the builds of the job, it is not refreshed
+        assertNull(ScheduledRefresh.getAuthentication(project));
+        assertNull(ScheduledRefresh.refresh(param, project));
+        assertEquals(FormValidation.Kind.WARNING, descriptor.doCheckRefreshSchedule(project, "H * * * *").kind);
+
+        runBuildsAs(project, "alice");
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckRefreshSchedule(project, "H * * * *").kind);
+        ScheduledRefresh.refresh(param, project);
+        assertEquals("[alice]", param.getChoices().values().toString());
+
+        // a copy has the same parameter UUIDs, but never the results of the original job
+        FreeStyleProject copy = j.jenkins.copy(project, "copy");
+        ChoiceParameter copiedParam = (ChoiceParameter) copy.getProperty(ParametersDefinitionProperty.class)
+                .getParameterDefinition("param000");
+        assertNotEquals("[alice]", copiedParam.getChoices().values().toString());
+    }
+
+    @Test
+    public void testDefaultValueIsNotSharedBetweenUsers() throws Exception {
+        final String userScript = "return [jenkins.model.Jenkins.getAuthentication().getName()]";
+        ScriptApproval.get().preapprove(userScript, GroovyLanguage.get());
+        FreeStyleProject project = j.createFreeStyleProject();
+        ChoiceParameter param = new ChoiceParameter("param000", "description", "some-random-name",
+                new GroovyScript(new SecureGroovyScript(userScript, Boolean.FALSE, null), null),
+                ChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, false, 0);
+        project.addProperty(new ParametersDefinitionProperty(param));
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        // kept for a few seconds, for each user
+        assertEquals("alice", getDefaultValueAs(param, "alice"));
+        assertEquals("bob", getDefaultValueAs(param, "bob"));
+    }
+
+    private static Object getDefaultValueAs(ChoiceParameter param, String user) {
+        SecurityContext previous = ACL.impersonate(User.get(user).impersonate());
+        try {
+            return param.getDefaultParameterValue().getValue();
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+    }
+
+    @Test
+    public void testFindProjectWithShortName() throws Exception {
+        MockFolder folder = j.createFolder("folder");
+        FreeStyleProject project = folder.createProject(FreeStyleProject.class, "same-name");
+        FreeStyleProject unrelated = j.createFreeStyleProject("same-name");
+        ChoiceParameter param = new ChoiceParameter("param000", "description", "some-random-name",
+                new GroovyScript(new SecureGroovyScript(SCRIPT, Boolean.FALSE, null), null),
+                ChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, false, 0);
+        project.addProperty(new ParametersDefinitionProperty(param));
+        // as stored by older versions, the short name of the job in the folder, the full name of another job
+        Field projectName = AbstractScriptableParameter.class.getDeclaredField("projectName");
+        projectName.setAccessible(true);
+        projectName.set(param, unrelated.getName());
+        assertEquals(project, param.findProject());
+    }
+
+    private void runBuildsAs(FreeStyleProject project, String user) {
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        QueueItemAuthenticatorConfiguration.get().getAuthenticators().add(new MockQueueItemAuthenticator(
+                Collections.singletonMap(project.getFullName(), User.get(user).impersonate())));
+    }
+
+    @Test
+    public void testInvalidatedByUpstreamBuilds() throws Exception {
+        final String randomScript = "return [java.util.UUID.randomUUID().toString()]";
+        ScriptApproval.get().preapprove(randomScript, GroovyLanguage.get());
+        MockFolder folder = j.createFolder("libraries");
+        FreeStyleProject upstream = folder.createProject(FreeStyleProject.class, "upstream");
+        FreeStyleProject other = folder.createProject(FreeStyleProject.class, "other");
+        FreeStyleProject project = folder.createProject(FreeStyleProject.class, "project");
+        ChoiceParameter param = new ChoiceParameter("param000", "description", "some-random-name",
+                new GroovyScript(new SecureGroovyScript(randomScript, Boolean.FALSE, null), null),
+                ChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, false, 0);
+        param.setShared(true);
+        param.setUpstreamJobs("upstream, ../missing");
+        project.addProperty(new ParametersDefinitionProperty(param));
+
+        assertTrue(param.dependsOn(project, project));
+        assertTrue(param.dependsOn(project, upstream));
+        assertFalse(param.dependsOn(project, other));
+
+        // only the jobs that depend on a job are loaded
+        assertEquals(Collections.singleton("libraries/project"), JobIndex.getDependentJobNames("libraries/upstream"));
+        assertTrue(JobIndex.getDependentJobNames("libraries/other").isEmpty());
+
+        Map<Object, Object> choices = param.getChoices();
+        j.buildAndAssertSuccess(other);
+        // invalidated in the background, waited for here
+        ResultsInvalidation.invalidate(other).get();
+        assertEquals(choices, param.getChoices());
+        j.buildAndAssertSuccess(upstream);
+        ResultsInvalidation.invalidate(upstream).get();
+        assertNotEquals(choices, param.getChoices());
+    }
 }
@@ -25,8 +25,11 @@
 package org.biouno.unochoice;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Collections;
+
 import org.biouno.unochoice.model.GroovyScript;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
@@ -35,6 +38,15 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.JenkinsRule.WebClient;
+
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParametersDefinitionProperty;
+import net.sf.json.JSONObject;
 
 public class TestDynamicReferenceParameter {
 
@@ -66,4 +78,27 @@ public class TestDynamicReferenceParameter {
         assertTrue(param.getOmitValueField());
     }
 
+    @Test
+    public void testDeferred() throws Exception {
+        String html = "return '<b>deferred-html</b>'";
+        ScriptApproval.get().preapprove(html, GroovyLanguage.get());
+        GroovyScript script = new GroovyScript(new SecureGroovyScript(html, Boolean.FALSE, null), null);
+        DynamicReferenceParameter param = new DynamicReferenceParameter("param000", "description", "some-random-name",
+                script, CascadeChoiceParameter.ELEMENT_TYPE_FORMATTED_HTML, "", false);
+        assertFalse(param.isDeferred());
+        param.setDeferred(true);
+
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.addProperty(new ParametersDefinitionProperty(Collections.<ParameterDefinition>singletonList(param)));
+        WebClient wc = j.createWebClient();
+        wc.getOptions().setJavaScriptEnabled(false);
+        HtmlPage page = wc.goTo(project.getUrl() + "build?delay=0sec");
+
+        // the page only has the placeholder, the HTML is fetched by the UI
+        assertFalse(page.getWebResponse().getContentAsString().contains("deferred-html"));
+        assertEquals(1, page.getByXPath("//div[@class='uno_choice_deferred']").size());
+        HtmlElement div = page.getFirstByXPath("//div[@data-uno-choice]");
+        assertTrue(JSONObject.fromObject(div.getAttribute("data-uno-choice")).getBoolean("deferred"));
+    }
+
 }
@@ -0,0 +1,239 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.biouno.unochoice.load;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.biouno.unochoice.AbstractUnoChoiceParameter;
+import org.biouno.unochoice.CascadeChoiceParameter;
+import org.biouno.unochoice.ChoiceParameter;
+import org.biouno.unochoice.model.GroovyScript;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyLanguage;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.JenkinsRule.WebClient;
+
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParametersDefinitionProperty;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * <p>Load test of the cascade parameters endpoints. Creates a job with a chain of cascade parameters, where each
+ * parameter references the previous one, and simulates concurrent users. Each user opens the build page, and
+ * then repeatedly picks a value for the first parameter and walks down the chain, calling <code>doUpdate</code>
+ * and <code>streamChoicesForUI</code> over HTTP, as the browser does.</p>
+ *
+ * <p>Logs the throughput, the p50 and p99 latency of each update (<code>doUpdate</code> followed by
+ * <code>streamChoicesForUI</code>), the errors, and the mismatches, i.e. responses with choices that were not
+ * computed from the value the user sent. Only the errors fail the test.</p>
+ *
+ * <p>Disabled unless the <code>org.biouno.unochoice.loadTest</code> system property is <code>true</code>, which
+ * the <code>load-test</code> Maven profile does. The number of users, iterations per user, parameters in the
+ * chain and choices per parameter can be changed with the <code>org.biouno.unochoice.loadTest.users</code>,
+ * <code>.iterations</code>, <code>.chainLength</code> and <code>.choices</code> system properties.</p>
+ *
+ * @since 2.2
+ */
+public class CascadeLoadTest {
+
+    private static final Logger LOGGER = Logger.getLogger(CascadeLoadTest.class.getName());
+
+    private static final String PREFIX = "org.biouno.unochoice.loadTest";
+
+    private static final int USERS = Integer.getInteger(PREFIX + ".users", 20);
+    private static final int ITERATIONS = Integer.getInteger(PREFIX + ".iterations", 50);
+    private static final int CHAIN_LENGTH = Integer.getInteger(PREFIX + ".chainLength", 3);
+    private static final int CHOICES = Integer.getInteger(PREFIX + ".choices", 100);
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FreeStyleProject project;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Boolean.getBoolean(PREFIX));
+        final List<ParameterDefinition> parameters = new ArrayList<ParameterDefinition>();
+        for (int i = 0; i < CHAIN_LENGTH; i++) {
+            final String script = i == 0
+                    ? String.format("return (1..%d).collect { 'v' + it }", CHOICES)
+                    : String.format("return (1..%d).collect { P%d + '-' + it }", CHOICES, i - 1);
+            ScriptApproval.get().preapprove(script, GroovyLanguage.get());
+            final GroovyScript groovyScript = new GroovyScript(new SecureGroovyScript(script, Boolean.FALSE, null),
+                    null);
+            if (i == 0) {
+                parameters.add(new ChoiceParameter("P0", "", "load-test-0", groovyScript,
+                        AbstractUnoChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, false, 1));
+            } else {
+                parameters.add(new CascadeChoiceParameter("P" + i, "", "load-test-" + i, groovyScript,
+                        AbstractUnoChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, "P" + (i - 1), false, 1));
+            }
+        }
+        project = j.createFreeStyleProject("load");
+        project.addProperty(new ParametersDefinitionProperty(parameters));
+    }
+
+    @Test
+    public void testConcurrentUsers() throws Exception {
+        final List<User> users = new ArrayList<User>();
+        for (int i = 0; i < USERS; i++) {
+            users.add(new User(j.createWebClient(), i));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(USERS);
+        final long start = System.nanoTime();
+        try {
+            final List<Future<User>> results = executor.invokeAll(users);
+            for (Future<User> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+
+        final List<Long> latencies = new ArrayList<Long>();
+        int errors = 0;
+        int mismatches = 0;
+        for (User user : users) {
+            latencies.addAll(user.latencies);
+            errors += user.errors;
+            mismatches += user.mismatches;
+        }
+        Collections.sort(latencies);
+        final int updates = latencies.size();
+        LOGGER.info(String.format("Cascade load test: %d users, %d iterations, chain of %d parameters with %d "
+                + "choices%n  updates: %d in %.2f s (%.1f/s)%n  latency: p50 %.2f ms, p99 %.2f ms%n  errors: %d, "
+                + "mismatches: %d", USERS, ITERATIONS, CHAIN_LENGTH, CHOICES, updates, elapsed, updates / elapsed,
+                percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6, errors, mismatches));
+
+        assertEquals("Requests failed", 0, errors);
+        // mismatches are only reported: the values sent with doUpdate are kept in the parameter definition, which
+        // all the users share, until streamChoicesForUI reads them, so concurrent users can overwrite each other's
+        // values
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty())
+            return 0L;
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+
+    /**
+     * A simulated user, with its own HTTP session.
+     */
+    private final class User implements Callable<User> {
+        private final WebClient wc;
+        private final Random random;
+        private final List<Long> latencies = new ArrayList<Long>();
+        private int errors = 0;
+        private int mismatches = 0;
+
+        User(WebClient wc, int seed) {
+            this.wc = wc;
+            this.random = new Random(seed);
+            wc.getOptions().setJavaScriptEnabled(false);
+            wc.getOptions().setThrowExceptionOnFailingStatusCode(false);
+        }
+
+        @Override
+        public User call() throws Exception {
+            // the proxies of the parameters, bound to this user session when the build page is rendered
+            final Map<String, JSONObject> proxies = new HashMap<String, JSONObject>();
+            final HtmlPage page = wc.goTo(project.getUrl() + "build?delay=0sec");
+            for (Object o : page.getByXPath("//div[@data-uno-choice]")) {
+                final JSONObject config = JSONObject.fromObject(((HtmlElement) o).getAttribute("data-uno-choice"));
+                proxies.put(config.getString("name"), config.getJSONObject("proxy"));
+            }
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                String value = "v" + (random.nextInt(CHOICES) + 1);
+                for (int i = 1; i < CHAIN_LENGTH; i++) {
+                    final JSONObject proxy = proxies.get("P" + i);
+                    final long start = System.nanoTime();
+                    final String choices;
+                    try {
+                        call(proxy, "doUpdate", JSONArray.fromObject(new Object[] {"P" + (i - 1) + "=" + value}));
+                        choices = call(proxy, "streamChoicesForUI", new JSONArray());
+                    } catch (Exception e) {
+                        errors++;
+                        break;
+                    }
+                    latencies.add(System.nanoTime() - start);
+                    final JSONArray keysAndLabels = JSONObject.fromObject(choices).getJSONArray("c");
+                    boolean matches = keysAndLabels.size() == CHOICES * 2;
+                    for (int k = 1; matches && k < keysAndLabels.size(); k += 2) {
+                        matches = keysAndLabels.getString(k).startsWith(value + "-");
+                    }
+                    if (!matches) {
+                        mismatches++;
+                        break;
+                    }
+                    value = keysAndLabels.getString(2 * random.nextInt(CHOICES) + 1);
+                }
+            }
+            return this;
+        }
+
+        private String call(JSONObject proxy, String method, JSONArray arguments) throws Exception {
+            final WebRequest request = new WebRequest(new URL(j.getURL(), proxy.getString("url") + "/" + method),
+                    HttpMethod.POST);
+            request.setAdditionalHeader("Content-Type", "application/x-stapler-method-invocation;charset=UTF-8");
+            request.setAdditionalHeader("Crumb", proxy.optString("crumb"));
+            request.setRequestBody(arguments.toString());
+            final WebResponse response = wc.getPage(request).getWebResponse();
+            if (response.getStatusCode() != 200) {
+                throw new IllegalStateException(method + " returned " + response.getStatusCode());
+            }
+            return response.getContentAsString();
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.biouno.unochoice.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.biouno.unochoice.ChoiceParameter;
+import org.biouno.unochoice.util.JobIndex;
+import org.biouno.unochoice.util.ScriptClassCache;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+import org.jenkinsci.plugins.scriptsecurity.scripts.UnapprovedUsageException;
+import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyLanguage;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+/**
+ * Tests for {@link GroovyScript}.
+ */
+public class TestGroovyScript {
+
+    private static final String SCRIPT = "List<Integer> l = [3, 1, 2]\nreturn l.sort() + [(STATE as String).size()]";
+    private static final String UNTYPED_SCRIPT = "return STATE.size()";
+    private static final String FALLBACK_SCRIPT = "return ['EMPTY!']";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Before
+    public void setUp() {
+        ScriptApproval.get().preapprove(SCRIPT, GroovyLanguage.get());
+        ScriptApproval.get().preapprove(UNTYPED_SCRIPT, GroovyLanguage.get());
+        ScriptApproval.get().preapprove(FALLBACK_SCRIPT, GroovyLanguage.get());
+    }
+
+    @Test
+    public void testStaticCompilation() {
+        GroovyScript script = new GroovyScript(new SecureGroovyScript(SCRIPT, Boolean.FALSE, null),
+                new SecureGroovyScript(FALLBACK_SCRIPT, Boolean.FALSE, null));
+        script.setStaticCompilation(true);
+        Map<String, String> parameters = Collections.singletonMap("STATE", "SP");
+        assertEquals(Arrays.asList(1, 2, 3, 2), script.eval(parameters));
+        // compiled once, evaluated with other bindings
+        assertEquals(Arrays.asList(1, 2, 3, 3), script.eval(Collections.singletonMap("STATE", "RIO")));
+    }
+
+    @Test
+    public void testScriptThatCannotBeStaticallyCompiledUsesFallback() {
+        GroovyScript script = new GroovyScript(new SecureGroovyScript(UNTYPED_SCRIPT, Boolean.FALSE, null),
+                new SecureGroovyScript(FALLBACK_SCRIPT, Boolean.FALSE, null));
+        assertEquals(2, script.eval(Collections.singletonMap("STATE", "SP")));
+        script.setStaticCompilation(true);
+        assertEquals(Arrays.asList("EMPTY!"), script.eval(Collections.singletonMap("STATE", "SP")));
+    }
+
+    @Test
+    public void testStaticCompilationRequiresApproval() {
+        GroovyScript script = new GroovyScript(new SecureGroovyScript("return [1]", Boolean.FALSE, null),
+                new SecureGroovyScript(FALLBACK_SCRIPT, Boolean.FALSE, null));
+        script.setStaticCompilation(true);
+        assertEquals(Arrays.asList("EMPTY!"), script.eval(Collections.<String, String>emptyMap()));
+    }
+
+    @Test
+    public void testScriptsAreCompiledOnce() {
+        GroovyScript script = new GroovyScript(new SecureGroovyScript(SCRIPT, Boolean.FALSE, null),
+                new SecureGroovyScript(FALLBACK_SCRIPT, Boolean.FALSE, null));
+        long compiledScripts = ScriptClassCache.get().getCompiledScripts();
+        assertEquals(Arrays.asList(1, 2, 3, 2), script.eval(Collections.singletonMap("STATE", "SP")));
+        assertEquals(Arrays.asList(1, 2, 3, 3), script.eval(Collections.singletonMap("STATE", "RIO")));
+        assertEquals(compiledScripts + 1, ScriptClassCache.get().getCompiledScripts());
+    }
+
+    @Test
+    public void testCompiledScriptsAreSharedByText() {
+        String text = "return ['shared by text']";
+        ScriptApproval.get().preapprove(text, GroovyLanguage.get());
+        long compiledScripts = ScriptClassCache.get().getCompiledScripts();
+        // a new instance for each evaluation, as Scriptler scripts are, is not compiled again
+        for (int i = 0; i < 3; i++) {
+            GroovyScript script = new GroovyScript(new SecureGroovyScript(text, Boolean.FALSE, null),
+                    new SecureGroovyScript(FALLBACK_SCRIPT, Boolean.FALSE, null));
+            assertEquals(Arrays.asList("shared by text"), script.eval());
+        }
+        assertEquals(compiledScripts + 1, ScriptClassCache.get().getCompiledScripts());
+    }
+
+    @Test
+    public void testCompiledScriptsAreDisposedOfWhenReconfigured() throws Exception {
+        String text = "return ['before']";
+        ScriptApproval.get().preapprove(text, GroovyLanguage.get());
+        // the index keeps the compiled classes of each job once it is built
+        JobIndex.getJobNames();
+        FreeStyleProject project = j.createFreeStyleProject();
+        GroovyScript script = new GroovyScript(new SecureGroovyScript(text, Boolean.FALSE, null), null);
+        project.addProperty(new ParametersDefinitionProperty(new ChoiceParameter("param000", "description",
+                "some-random-name", script, ChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, false, 0)));
+        assertEquals(Arrays.asList("before"), script.eval());
+        int size = ScriptClassCache.get().size();
+
+        project.removeProperty(ParametersDefinitionProperty.class);
+        project.addProperty(new ParametersDefinitionProperty(new ChoiceParameter("param000", "description",
+                "some-random-name", new GroovyScript(new SecureGroovyScript(FALLBACK_SCRIPT, Boolean.FALSE, null),
+                        null), ChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, false, 0)));
+        // no job uses the previous script anymore
+        assertEquals(size - 1, ScriptClassCache.get().size());
+    }
+
+    @Test
+    public void testSandboxedScriptsAreEvaluatedByScriptSecurity() {
+        GroovyScript script = new GroovyScript(new SecureGroovyScript("return [System.getenv()]", Boolean.TRUE,
+                null), new SecureGroovyScript(FALLBACK_SCRIPT, Boolean.FALSE, null));
+        long compiledScripts = ScriptClassCache.get().getCompiledScripts();
+        assertEquals(Arrays.asList("EMPTY!"), script.eval(Collections.<String, String>emptyMap()));
+        assertEquals(Arrays.asList("EMPTY!"), script.eval(Collections.<String, String>emptyMap()));
+        // never compiled into the cache, the sandbox is applied by SecureGroovyScript
+        assertEquals(compiledScripts, ScriptClassCache.get().getCompiledScripts());
+        script = new GroovyScript(new SecureGroovyScript("return [X, X]", Boolean.TRUE, null),
+                new SecureGroovyScript(FALLBACK_SCRIPT, Boolean.FALSE, null));
+        assertEquals(Arrays.asList("a", "a"), script.eval(Collections.singletonMap("X", "a")));
+    }
+
+    @Test
+    public void testProfileDoesNotApproveScripts() throws Exception {
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        MockAuthorizationStrategy strategy = new MockAuthorizationStrategy();
+        strategy.grant(Jenkins.ADMINISTER).everywhere().to("admin");
+        j.jenkins.setAuthorizationStrategy(strategy);
+        String text = "return ['profiled']";
+        GroovyScript.DescriptorImpl descriptor = j.jenkins.getDescriptorByType(GroovyScript.DescriptorImpl.class);
+        FormValidation profile;
+        SecurityContext previous = ACL.impersonate(User.get("admin").impersonate());
+        try {
+            profile = descriptor.doProfile(null, text, false);
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+        assertEquals(FormValidation.Kind.ERROR, profile.kind);
+        try {
+            ScriptApproval.get().using(text, GroovyLanguage.get());
+            fail("Profiling must not approve the script");
+        } catch (UnapprovedUsageException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ChoiceList}.
+ */
+public class TestChoiceList {
+
+    @Test
+    public void testCopyOfMap() {
+        Map<Object, Object> choices = new LinkedHashMap<Object, Object>();
+        choices.put("b", "B:selected");
+        choices.put("a", "A");
+        choices.put(1, null);
+        ChoiceList list = ChoiceList.copyOf(choices);
+        assertEquals(choices, list);
+        assertEquals(choices.hashCode(), list.hashCode());
+        assertEquals(choices.toString(), list.toString());
+        assertEquals("[B:selected, A, null]", list.values().toString());
+        assertEquals("A", list.get("a"));
+        assertTrue(list.containsKey(1));
+        assertFalse(list.containsKey("c"));
+        assertSame(list, ChoiceList.copyOf(list));
+    }
+
+    @Test
+    public void testLargeListsAreIndexed() {
+        List<Object> choices = new ArrayList<Object>();
+        for (int i = 0; i < 1000; i++) {
+            choices.add("choice" + i);
+        }
+        ChoiceList list = ChoiceList.view(choices);
+        assertEquals(999, list.indexOf("choice999"));
+        assertEquals("choice500", list.get("choice500"));
+        assertNull(list.get("choice1000"));
+    }
+
+    @Test
+    public void testStringsAreInterned() {
+        ChoiceList first = ChoiceList.copyOf(Collections.singletonMap(new String("shared"), new String("shared")));
+        ChoiceList second = ChoiceList.copyOf(Collections.singletonMap(new String("shared"), new String("shared")));
+        assertSame(first.getKey(0), second.getKey(0));
+        assertSame(first.getKey(0), first.getLabel(0));
+    }
+
+    @Test
+    public void testListView() {
+        List<Object> choices = new ArrayList<Object>(Arrays.<Object>asList("a", "b", "a", "c"));
+        ChoiceList list = ChoiceList.view(choices);
+        // duplicates are a single choice, at their first position, as in a LinkedHashMap
+        Map<Object, Object> expected = new LinkedHashMap<Object, Object>();
+        for (Object choice : choices) {
+            expected.put(choice, choice);
+        }
+        assertEquals(expected, list);
+        assertEquals(list, expected);
+        assertEquals(expected.hashCode(), list.hashCode());
+        assertEquals(expected.keySet(), list.keySet());
+        assertEquals("{a=a, b=b, c=c}", list.toString());
+        assertEquals(3, list.size());
+        assertEquals("[a, b, c]", list.values().toString());
+        assertEquals(1, list.indexOf("b"));
+        assertEquals(-1, list.indexOf("d"));
+        assertEquals("c", list.getLabel(2));
+    }
+
+    @Test
+    public void testLinkedListView() {
+        List<Object> choices = new LinkedList<Object>(Arrays.<Object>asList("a", "b", "a", "c", "b"));
+        ChoiceList list = ChoiceList.view(choices);
+        assertEquals("{a=a, b=b, c=c}", list.toString());
+        assertEquals("[a, b, c]", list.values().toString());
+        assertEquals(2, list.indexOf("c"));
+        assertEquals("b", list.getKey(1));
+    }
+
+    @Test
+    public void testMapView() {
+        Map<Object, Object> choices = new LinkedHashMap<Object, Object>();
+        choices.put("a", "A");
+        Map<Object, Object> view = ChoiceList.view(choices);
+        assertEquals(choices, view);
+        choices.put("b", "B");
+        assertEquals("B", view.get("b"));
+        ChoiceList compact = ChoiceList.copyOf(choices);
+        assertSame(compact, ChoiceList.view(compact));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() {
+        ChoiceList.view(Arrays.asList("a")).put("b", "b");
+    }
+
+    @Test
+    public void testSerialization() {
+        Map<Object, Object> choices = new LinkedHashMap<Object, Object>();
+        choices.put("a", "A");
+        choices.put("b", "B");
+        ChoiceList list = ChoiceList.copyOf(choices);
+        ChoiceList copy = (ChoiceList) SerializationUtils.clone(list);
+        assertEquals(list, copy);
+        assertSame(list.getKey(0), copy.getKey(0));
+    }
+
+    @Test
+    public void testTruncate() {
+        Map<Object, Object> choices = new LinkedHashMap<Object, Object>();
+        for (int i = 0; i < 10; i++) {
+            choices.put("k" + i, "v" + i);
+        }
+        assertNull(ChoiceList.truncate(choices, 10, Long.MAX_VALUE));
+        ChoiceList byCount = ChoiceList.truncate(choices, 3, Long.MAX_VALUE);
+        assertEquals("{k0=v0, k1=v1, k2=v2}", byCount.toString());
+        assertTrue(byCount.isTruncated());
+        // each choice takes 10 characters: two quoted strings of 2 characters, and their separators
+        ChoiceList bySize = ChoiceList.truncate(choices, 10, 25);
+        assertEquals(2, bySize.size());
+        assertTrue(bySize.isTruncated());
+        assertFalse(ChoiceList.copyOf(choices).isTruncated());
+    }
+
+    @Test
+    public void testTruncateList() {
+        List<Object> choices = new ArrayList<Object>(Arrays.<Object>asList("a", "b", "a", "c"));
+        assertNull(ChoiceList.truncate(choices, 4, Long.MAX_VALUE));
+        // the list is measured as it is, so duplicates count too
+        ChoiceList list = ChoiceList.truncate(choices, 3, Long.MAX_VALUE);
+        assertEquals("{a=a, b=b}", list.toString());
+        assertEquals(2, list.size());
+        assertTrue(list.isTruncated());
+        assertEquals("{a=a}", ResultLimit.apply(choices, 1, null, "test").toString());
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2016 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.biouno.unochoice.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for the compact JSON written by {@link ChoicesResponse}.
+ */
+public class TestChoicesResponse {
+
+    @Test
+    public void testWrite() throws IOException {
+        Map<Object, Object> choices = new LinkedHashMap<Object, Object>();
+        choices.put("a", "A");
+        choices.put("b:selected", "B:selected");
+        choices.put(1, 2);
+        StringWriter writer = new StringWriter();
+        ChoicesResponse.write(choices, writer);
+        assertEquals("{\"c\":[\"a\",\"A\",\"b\",\"B\",\"1\",\"2\"],\"s\":[2]}", writer.toString());
+    }
+
+    @Test
+    public void testWriteTruncated() throws IOException {
+        Map<Object, Object> choices = new LinkedHashMap<Object, Object>();
+        choices.put("a", "A");
+        choices.put("b", "B");
+        StringWriter writer = new StringWriter();
+        ChoicesResponse.write(ChoiceList.truncate(choices, 1, Long.MAX_VALUE), writer);
+        assertEquals("{\"c\":[\"a\",\"A\"],\"s\":[0],\"t\":1}", writer.toString());
+    }
+
+    @Test
+    public void testWriteLinkedListView() throws IOException {
+        StringWriter writer = new StringWriter();
+        ChoicesResponse.write(ChoiceList.view(new LinkedList<Object>(Arrays.asList("a", "b:selected", "a"))), writer);
+        assertEquals("{\"c\":[\"a\",\"a\",\"b\",\"b\"],\"s\":[2]}", writer.toString());
+    }
+
+    @Test
+    public void testWriteEmpty() throws IOException {
+        StringWriter writer = new StringWriter();
+        ChoicesResponse.write(Collections.emptyMap(), writer);
+        assertEquals("{\"c\":[],\"s\":[]}", writer.toString());
+    }
+
+    @Test
+    public void testSelectedBitmap() throws IOException {
+        Map<Object, Object> choices = new LinkedHashMap<Object, Object>();
+        for (int i = 0; i < 40; i++) {
+            choices.put("k" + i, (i == 0 || i == 31 || i == 32) ? "v" + i + ":selected" : "v" + i);
+        }
+        StringWriter writer = new StringWriter();
+        ChoicesResponse.write(choices, writer);
+        // bit 31 set in the first word must not come out as a negative number
+        assertTrue(writer.toString().endsWith("\"s\":[2147483649,1]}"));
+    }
+
+    @Test
+    public void testEscaping() throws IOException {
+        StringWriter writer = new StringWriter();
+        ChoicesResponse.write(Collections.singletonMap("\"q\"\\", "<b>\n</b>"), writer);
+        assertEquals("{\"c\":[\"\\\"q\\\"\\\\\",\"\\u003cb\\u003e\\n\\u003c/b\\u003e\"],\"s\":[0]}",
+                writer.toString());
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.biouno.unochoice.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link CircuitBreaker}.
+ */
+public class TestCircuitBreaker {
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        final CircuitBreaker breaker = new CircuitBreaker(2, 1, TimeUnit.HOURS);
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        assertFalse("Failures must be consecutive", breaker.isOpen());
+        breaker.recordFailure();
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void testProbesAfterCoolDown() {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 0, TimeUnit.MILLISECONDS);
+        breaker.recordFailure();
+        assertTrue(breaker.isOpen());
+        assertTrue("A probe is allowed after the cool-down", breaker.allowRequest());
+        assertFalse("Only one probe at a time", breaker.allowRequest());
+        breaker.recordFailure();
+        assertTrue(breaker.isOpen());
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testIgnoredFailuresDoNotOpen() {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 0, TimeUnit.MILLISECONDS);
+        breaker.recordIgnoredFailure();
+        assertFalse(breaker.isOpen());
+    }
+
+}
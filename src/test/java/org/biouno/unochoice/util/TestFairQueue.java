@@ -0,0 +1,95 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link FairQueue}.
+ */
+public class TestFairQueue {
+
+    @Test
+    public void testTimeout() throws Exception {
+        final FairQueue queue = new FairQueue(1);
+        assertTrue(queue.acquire("alice", 1, TimeUnit.SECONDS));
+        assertFalse(queue.acquire("bob", 10, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.getWaiting());
+        queue.release();
+        assertTrue(queue.acquire("bob", 10, TimeUnit.MILLISECONDS));
+        queue.release();
+        assertEquals(0, queue.getActive());
+    }
+
+    @Test
+    public void testUsersTakeTurns() throws Exception {
+        final FairQueue queue = new FairQueue(1);
+        final List<String> granted = Collections.synchronizedList(new ArrayList<String>());
+        assertTrue(queue.acquire("alice", 1, TimeUnit.SECONDS));
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (final String[] call : new String[][] { { "alice", "alice1" }, { "alice", "alice2" },
+                { "bob", "bob1" } }) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (queue.acquire(call[0], 10, TimeUnit.SECONDS)) {
+                            granted.add(call[1]);
+                            queue.release();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            final int waiting = queue.getWaiting();
+            thread.start();
+            threads.add(thread);
+            // wait until queued, so that the calls are queued in order
+            while (queue.getWaiting() == waiting) {
+                Thread.sleep(1);
+            }
+        }
+        queue.release();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // bob does not wait for all the calls of alice
+        assertEquals(Arrays.asList("alice1", "bob1", "alice2"), granted);
+        assertEquals(0, queue.getActive());
+    }
+
+}
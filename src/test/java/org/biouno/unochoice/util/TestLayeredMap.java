@@ -0,0 +1,72 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.biouno.unochoice.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LayeredMap}.
+ */
+public class TestLayeredMap {
+
+    @Test
+    public void testTopHidesBottom() {
+        Map<String, Object> bottom = new HashMap<String, Object>();
+        bottom.put("GLOBAL", "global");
+        bottom.put("NAME", "bottom");
+        Map<Object, Object> top = new LinkedHashMap<Object, Object>();
+        top.put("NAME", "top");
+        LayeredMap<Object, Object> map = new LayeredMap<Object, Object>(top,
+                Collections.unmodifiableMap(bottom));
+        map.put("PARAM", "param");
+
+        assertEquals("top", map.get("NAME"));
+        assertEquals("global", map.get("GLOBAL"));
+        assertTrue(map.containsKey("GLOBAL"));
+        assertEquals(3, map.size());
+        Map<Object, Object> expected = new HashMap<Object, Object>();
+        expected.put("NAME", "top");
+        expected.put("PARAM", "param");
+        expected.put("GLOBAL", "global");
+        assertEquals(expected, map);
+        // changes only go to the top map
+        assertEquals("bottom", bottom.get("NAME"));
+        assertEquals(2, top.size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testBottomIsReadOnly() {
+        new LayeredMap<Object, Object>(new HashMap<Object, Object>(), Collections.singletonMap("GLOBAL", "global"))
+                .remove("GLOBAL");
+    }
+
+}
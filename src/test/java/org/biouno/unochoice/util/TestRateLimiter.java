@@ -0,0 +1,70 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link RateLimiter}.
+ */
+public class TestRateLimiter {
+
+    @Test
+    public void testBurstThenRejected() {
+        final RateLimiter limiter = new RateLimiter(1, TimeUnit.MINUTES, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire("alice"));
+        }
+        final long retryAfter = limiter.tryAcquire("alice");
+        assertTrue(retryAfter > 0 && retryAfter <= TimeUnit.MINUTES.toMillis(1));
+        // other keys have their own buckets
+        assertEquals(0, limiter.tryAcquire("bob"));
+    }
+
+    @Test
+    public void testRefill() throws Exception {
+        final RateLimiter limiter = new RateLimiter(100, TimeUnit.SECONDS, 1);
+        assertEquals(0, limiter.tryAcquire("alice"));
+        assertTrue(limiter.tryAcquire("alice") > 0);
+        Thread.sleep(50);
+        assertEquals(0, limiter.tryAcquire("alice"));
+    }
+
+    @Test
+    public void testDisabled() {
+        final RateLimiter limiter = new RateLimiter(0, TimeUnit.SECONDS, 1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.tryAcquire("alice"));
+        }
+        assertEquals(0, limiter.size());
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.biouno.unochoice.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ResultCache}.
+ */
+public class TestResultCache {
+
+    @Test
+    public void testResultsAreCached() throws Exception {
+        final ResultCache<String, Integer> cache = new ResultCache<String, Integer>(1, TimeUnit.HOURS);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<Integer> loader = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return calls.incrementAndGet();
+            }
+        };
+        assertEquals(Integer.valueOf(1), cache.get("a", loader));
+        assertEquals(Integer.valueOf(1), cache.get("a", loader));
+        assertEquals(Integer.valueOf(2), cache.get("b", loader));
+        cache.invalidate("a");
+        assertEquals(Integer.valueOf(3), cache.get("a", loader));
+        cache.put("a", 10);
+        assertEquals(Integer.valueOf(10), cache.get("a", loader));
+    }
+
+    @Test
+    public void testResultsExpire() throws Exception {
+        final ResultCache<String, Integer> cache = new ResultCache<String, Integer>(0, TimeUnit.MILLISECONDS);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<Integer> loader = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return calls.incrementAndGet();
+            }
+        };
+        assertEquals(Integer.valueOf(1), cache.get("a", loader));
+        assertEquals(Integer.valueOf(2), cache.get("a", loader));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testExpiredResultsArePurgedOnAccess() throws Exception {
+        final ResultCache<String, Integer> cache = new ResultCache<String, Integer>(50, TimeUnit.MILLISECONDS);
+        final Callable<Integer> loader = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 1;
+            }
+        };
+        cache.get("a", loader);
+        cache.get("b", loader);
+        assertEquals(2, cache.size());
+        Thread.sleep(100);
+        // "a" and "b" are never asked for again, but do not stay in the cache
+        cache.get("c", loader);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testFailuresAreNotCached() throws Exception {
+        final ResultCache<String, Integer> cache = new ResultCache<String, Integer>(1, TimeUnit.HOURS);
+        try {
+            cache.get("a", new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    throw new IllegalStateException("failed");
+                }
+            });
+        } catch (ExecutionException e) {
+            assertEquals("failed", e.getCause().getMessage());
+        }
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testConcurrentCallsAreCollapsed() throws Exception {
+        final ResultCache<String, Integer> cache = new ResultCache<String, Integer>(0, TimeUnit.MILLISECONDS);
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Integer> loader = new Callable<Integer>() {
+            @Override
+            public Integer call() throws InterruptedException {
+                started.countDown();
+                release.await();
+                return calls.incrementAndGet();
+            }
+        };
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return cache.get("a", loader);
+                }
+            }));
+            started.await();
+            for (int i = 0; i < 7; i++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return cache.get("a", loader);
+                    }
+                }));
+            }
+            // give the other threads time to reach the cache
+            Thread.sleep(200);
+            release.countDown();
+            for (Future<Integer> result : results) {
+                assertEquals(Integer.valueOf(1), result.get());
+            }
+            assertEquals(1, calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -25,11 +25,17 @@
 package org.biouno.unochoice.util;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.biouno.unochoice.model.GroovyScript;
 import org.biouno.unochoice.model.ScriptlerScriptParameter;
@@ -73,4 +79,36 @@ public class TestScriptCallback {
         assertEquals(sc.getScript(), script);
     }
 
+    @Test
+    public void testCancel() throws Exception {
+        final String sleepingScript = "Thread.sleep(60000); return ['a', 'b']";
+        ScriptApproval.get().preapprove(sleepingScript, GroovyLanguage.get());
+        GroovyScript script = new GroovyScript(new SecureGroovyScript(sleepingScript, Boolean.FALSE, null),
+                new SecureGroovyScript(FALLBACK_SCRIPT, Boolean.FALSE, null));
+        final ScriptCallback<Exception> sc = new ScriptCallback<Exception>("callback1", script,
+                new HashMap<String, String>(), "folder/job");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Object> result = executor.submit(new java.util.concurrent.Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return sc.call();
+                }
+            });
+            while (RunningEvaluation.getAll().isEmpty()) {
+                Thread.sleep(10);
+            }
+            RunningEvaluation evaluation = RunningEvaluation.getAll().get(0);
+            assertEquals("folder/job", evaluation.getJob());
+            assertEquals("callback1", evaluation.getParameter());
+            assertTrue(evaluation.getElapsed() >= 0);
+            evaluation.cancel();
+            // the waiting call gets the fallback result
+            assertEquals(Arrays.asList("EMPTY!"), result.get(10, TimeUnit.SECONDS));
+            assertTrue(RunningEvaluation.getAll().isEmpty());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
 }
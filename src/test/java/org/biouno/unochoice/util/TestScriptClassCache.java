@@ -0,0 +1,92 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.junit.Test;
+
+import groovy.lang.Binding;
+import groovy.lang.Script;
+
+/**
+ * Tests for {@link ScriptClassCache}.
+ */
+public class TestScriptClassCache {
+
+    private final ClassLoader parent = getClass().getClassLoader();
+
+    private Class<? extends Script> compile(ScriptClassCache cache, String script) {
+        return cache.getScriptClass(script, parent, new CompilerConfiguration(), script, "Script.groovy");
+    }
+
+    @Test
+    public void testScriptsAreCompiledOnce() {
+        ScriptClassCache cache = new ScriptClassCache(10, 1, TimeUnit.HOURS);
+        Class<? extends Script> scriptClass = compile(cache, "return [1, 2].collect { it * x }");
+        assertSame(scriptClass, compile(cache, "return [1, 2].collect { it * x }"));
+        assertEquals(1, cache.getCompiledScripts());
+        // the script class and the closure class
+        assertEquals(2, cache.getDefinedClasses());
+
+        Binding binding = new Binding();
+        binding.setVariable("x", 3);
+        assertEquals("[3, 6]", InvokerHelper.createScript(scriptClass, binding).run().toString());
+    }
+
+    @Test
+    public void testEvictedScriptsAreDisposed() {
+        ScriptClassCache cache = new ScriptClassCache(2, 1, TimeUnit.HOURS);
+        Class<? extends Script> first = compile(cache, "return 1");
+        compile(cache, "return 2");
+        compile(cache, "return 3");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getDisposedScripts());
+        assertEquals(1, cache.getDisposedClasses());
+        // compiled again, with a new class loader
+        assertNotSame(first, compile(cache, "return 1"));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertEquals(4, cache.getDisposedScripts());
+    }
+
+    @Test
+    public void testIdleScriptsAreDisposed() {
+        ScriptClassCache cache = new ScriptClassCache(10, 0, TimeUnit.MILLISECONDS);
+        compile(cache, "return 1");
+        compile(cache, "return 2");
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getDisposedScripts());
+    }
+
+}
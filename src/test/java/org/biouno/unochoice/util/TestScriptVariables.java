@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014-2018 Ioannis Moutsatsos, Bruno P. Kinoshita
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.biouno.unochoice.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ScriptVariables}.
+ */
+public class TestScriptVariables {
+
+    private static Set<String> read(String script) {
+        return ScriptVariables.getReadVariables(script, TestScriptVariables.class.getClassLoader());
+    }
+
+    @Test
+    public void testDeclaredVariablesAreNotRead() {
+        Set<String> variables = read("def local = 'x'\n"
+                + "def list = [1, 2].collect { it -> it + local + COUNTRY }\n"
+                + "for (int i = 0; i < 2; i++) { list << i }\n"
+                + "return list + binding.getVariable('REGION') + binding.CITY");
+        assertTrue(variables.contains("COUNTRY"));
+        assertTrue(variables.contains("REGION"));
+        assertTrue(variables.contains("CITY"));
+        assertTrue(!variables.contains("local"));
+        assertTrue(!variables.contains("list"));
+        assertTrue(!variables.contains("i"));
+    }
+
+    @Test
+    public void testMethodsMayBeBindingClosures() {
+        assertTrue(read("return [format(NAME)]").contains("format"));
+    }
+
+    @Test
+    public void testUnknown() {
+        // the whole binding is read
+        assertNull(read("return binding.variables.keySet() as List"));
+        assertNull(read("return [binding.getVariable(NAME)]"));
+        assertNull(read("return [getBinding().getVariable('jenkinsProject')]"));
+        assertNull(read("return [this.getProperty('jenkins' + 'Project')]"));
+        assertNull(read("return [getProperty('jenkins' + 'Project')]"));
+        assertNull(read("def b = binding\nreturn [b.jenkinsProject]"));
+        assertNull(read("return [properties.binding]"));
+        assertNull(read("return [1].collect { owner.binding }"));
+        assertNull(read("return [helper(this)]"));
+        // does not compile
+        assertNull(read("return ["));
+    }
+
+    @Test
+    public void testPropertiesOfTheScript() {
+        Set<String> variables = read("return [this.REGION, getProperty('CITY'), this.getProperty('STATE')]");
+        assertTrue(variables.contains("REGION"));
+        assertTrue(variables.contains("CITY"));
+        assertTrue(variables.contains("STATE"));
+    }
+
+    @Test
+    public void testNoVariables() {
+        assertEquals(0, read("return ['a', 'b']").size());
+    }
+
+}
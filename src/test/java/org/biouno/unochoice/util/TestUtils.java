@@ -26,24 +26,35 @@ package org.biouno.unochoice.util;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
+import org.biouno.unochoice.ChoiceParameter;
+import org.biouno.unochoice.model.GroovyScript;
 import org.jenkinsci.plugins.scriptler.config.Script;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersDefinitionProperty;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
 
 /**
@@ -122,4 +133,103 @@ public class TestUtils {
         assertEquals("20:13:13", map.values().iterator().next());
     }
 
+    @Test
+    public void testGetGlobalNodePropertiesSnapshot() throws Exception {
+        EnvironmentVariablesNodeProperty envVarsNodeProp = new EnvironmentVariablesNodeProperty(
+                new EnvironmentVariablesNodeProperty.Entry("time", "20:13:13"));
+        j.jenkins.getGlobalNodeProperties().add(envVarsNodeProp);
+        Map<String, Object> map = Utils.getGlobalNodeProperties();
+        // shared by every caller until the configuration is saved again
+        assertSame(map, Utils.getGlobalNodeProperties());
+        try {
+            map.put("time", "00:00:00");
+            fail("The global node properties snapshot must not be modifiable");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        j.jenkins.getGlobalNodeProperties().remove(envVarsNodeProp);
+        assertTrue(Utils.getGlobalNodeProperties().isEmpty());
+    }
+
+    @Test
+    public void testFindJobByParameterUUID() throws Exception {
+        ChoiceParameter parameter = new ChoiceParameter("param000", "description", "some-uuid",
+                new GroovyScript(new SecureGroovyScript("return ['a']", Boolean.FALSE, null), null),
+                ChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, true, 0);
+        assertNull(Utils.findJobByParameterUUID("some-uuid"));
+
+        MockFolder folder = j.createFolder("folder");
+        FreeStyleProject project = folder.createProject(FreeStyleProject.class, "project");
+        project.addProperty(new ParametersDefinitionProperty(parameter));
+        assertSame(project, Utils.findJobByParameterUUID("some-uuid"));
+        assertSame(project, Utils.getJobByFullName("folder/project"));
+
+        project.renameTo("renamed");
+        assertSame(project, Utils.findJobByParameterUUID("some-uuid"));
+
+        folder.delete();
+        assertNull(Utils.findJobByParameterUUID("some-uuid"));
+    }
+
+    @Test
+    public void testCopiedJobDoesNotTakeOverParameters() throws Exception {
+        ChoiceParameter parameter = new ChoiceParameter("param000", "description", "copied-uuid",
+                new GroovyScript(new SecureGroovyScript("return ['a']", Boolean.FALSE, null), null),
+                ChoiceParameter.PARAMETER_TYPE_SINGLE_SELECT, true, 0);
+        FreeStyleProject original = j.createFreeStyleProject("original");
+        original.addProperty(new ParametersDefinitionProperty(parameter));
+        assertSame(original, Utils.findJobByParameterUUID("copied-uuid"));
+
+        FreeStyleProject copy = j.jenkins.copy(original, "copy");
+        assertSame(original, Utils.findJobByParameterUUID("copied-uuid"));
+        original.save();
+        assertSame(original, Utils.findJobByParameterUUID("copied-uuid"));
+
+        original.delete();
+        assertSame(copy, Utils.findJobByParameterUUID("copied-uuid"));
+    }
+
+    @Test
+    public void testComputeETag() {
+        Map<Object, Object> choices = new LinkedHashMap<Object, Object>();
+        choices.put("a", "A");
+        choices.put("b", "B:selected");
+        String eTag = Utils.computeETag(choices);
+        assertTrue(eTag.startsWith("\"") && eTag.endsWith("\""));
+
+        Map<Object, Object> sameChoices = new LinkedHashMap<Object, Object>(choices);
+        assertEquals(eTag, Utils.computeETag(sameChoices));
+
+        // order, and the type of the values, are part of the serialized result
+        Map<Object, Object> reversed = new LinkedHashMap<Object, Object>();
+        reversed.put("b", "B:selected");
+        reversed.put("a", "A");
+        assertNotEquals(eTag, Utils.computeETag(reversed));
+        Map<Object, Object> numbers = new LinkedHashMap<Object, Object>();
+        numbers.put(1, 1);
+        Map<Object, Object> strings = new LinkedHashMap<Object, Object>();
+        strings.put("1", "1");
+        assertNotEquals(Utils.computeETag(numbers), Utils.computeETag(strings));
+
+        // a truncated list is serialized with a flag, so it must not share the tag of the same choices
+        Map<Object, Object> more = new LinkedHashMap<Object, Object>(choices);
+        more.put("c", "C");
+        ChoiceList truncated = ChoiceList.truncate(more, 2, Long.MAX_VALUE);
+        assertTrue(truncated.isTruncated());
+        assertNotEquals(Utils.computeETag(ChoiceList.copyOf(choices)), Utils.computeETag(truncated));
+
+        assertEquals(Utils.computeETag("<b>text</b>"), Utils.computeETag("<b>text</b>"));
+        assertNotEquals(Utils.computeETag(""), Utils.computeETag((String) null));
+    }
+
+    @Test
+    public void testMatchesETag() {
+        assertFalse(Utils.matchesETag(null, "\"abc\""));
+        assertFalse(Utils.matchesETag("", "\"abc\""));
+        assertFalse(Utils.matchesETag("\"abd\"", "\"abc\""));
+        assertTrue(Utils.matchesETag("\"abc\"", "\"abc\""));
+        assertTrue(Utils.matchesETag("\"xyz\", \"abc\"", "\"abc\""));
+        assertTrue(Utils.matchesETag("*", "\"abc\""));
+    }
+
 }
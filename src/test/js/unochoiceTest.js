@@ -266,4 +266,44 @@ QUnit.test("Test FilteredElement with selects and set filtered pattern length: n
     filterElement.getFilterElement().value = 'uno';
     jQuery(filterElement.getFilterElement()).keyup();
     equal(8, jQuery(parameterHtmlElement).children().length, "Right select options count");
-});
\ No newline at end of file
+});
+/**
+ * Tests for decodeChoices.
+ */
+QUnit.test("Test decodeChoices", function() {
+    var data = UnoChoice.decodeChoices('{"c":["a","A","b","B","c","C"],"s":[2]}');
+    deepEqual(data.keys, ['a', 'b', 'c'], 'keys are decoded');
+    deepEqual(data.values, ['A', 'B', 'C'], 'values are decoded');
+    ok(!data.isSelected(0), 'first choice is not selected');
+    ok(data.isSelected(1), 'second choice is selected');
+    ok(!data.isSelected(2), 'third choice is not selected');
+    ok(!data.isSelected(40), 'choices out of the bitmap are not selected');
+    var high = UnoChoice.decodeChoices('{"c":[],"s":[2147483648]}');
+    ok(high.isSelected(31), 'last bit of a word is read as unsigned');
+});
+/**
+ * Tests for ChoicesCache.
+ */
+QUnit.test("Test ChoicesCache", function() {
+    var cache = new UnoChoice.ChoicesCache(2, null, 'test.');
+    cache.put('param', 'a=1', '"1"', 'one');
+    cache.put('param', 'a=2', '"2"', 'two');
+    equal(cache.get('param', 'a=1').responseText, 'one', 'entry is found by its input');
+    equal(cache.get('param', 'a=3'), undefined, 'other inputs are not found');
+    cache.put('param', 'a=3', '"3"', 'three');
+    equal(cache.size(), 2, 'cache is bounded');
+    equal(cache.get('param', 'a=2'), undefined, 'least recently used entry is evicted');
+    equal(cache.get('param', 'a=1').eTag, '"1"', 'recently used entry is kept');
+    equal(cache.get('other', 'a=1'), undefined, 'entries are kept by key');
+});
+/**
+ * Tests for findParameterElement.
+ */
+QUnit.test("Test findParameterElement", function() {
+    var $fixture = jQuery("#qunit-fixture");
+    $fixture.append('<div name="parameter"><input type="hidden" name="name" value="CITY"><select name="value" id="city"></select></div>');
+    equal(UnoChoice.findParameterElement('CITY').id, 'city', 'parameter element is found by name');
+    equal(UnoChoice.findParameterElement('STATE'), null, 'missing parameters are not found');
+    $fixture.append('<div name="parameter"><input type="hidden" name="name" value="STATE"><div id="state"></div></div>');
+    equal(UnoChoice.findParameterElement('STATE').id, 'state', 'parameters added later are indexed');
+});